@@ -0,0 +1,184 @@
+/**
+ * 
+ */
+package capabilities;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+import registries.ARegistry;
+import registries.IRegistryObject;
+import systems.SystemDataRegistryMapping;
+import systems.SystemDataSaveLoad;
+
+/**
+ * This class writes the data of a capability straight to a stream, in a fixed order.
+ * This is quite a bit faster than the map-based {@link ICapability#saveData(SystemDataSaveLoad)}
+ * as there are no names to write and no maps to fill, but it does mean the data can only
+ * be read back with the same codec.  Codecs are made with a {@link Builder}, which takes the
+ * getter and setter for each field.  Fields are written in the order they were added.
+ * <br><br>
+ * Every codec has a schema version, which is written before the fields.  Should you need to
+ * add fields to a capability, bump the version and add the new fields at the end with the
+ * version they were added in.  When older data is read, fields that didn't exist yet are left
+ * alone, so they keep whatever value the capability was constructed with.  Data saved with a
+ * newer version than the codec knows about can't be read, and will cause an IOException.
+ * Fields that are no longer saved may be kept as removed fields, so data from the versions
+ * that did save them can still be read.
+ * <br><br>
+ * Capabilities that have a codec should keep it in a static field and use it in their
+ * overrides of {@link ICapability#writeData(DataOutputStream)} and {@link ICapability#readData(DataInputStream, SystemDataRegistryMapping)}.
+ *
+ * @author don_bruce
+ */
+public class CapabilityCodec<CapabilityClass extends ICapability>{
+	private final int schemaVersion;
+	private final CodecField<CapabilityClass>[] fields;
+	
+	private CapabilityCodec(int schemaVersion, CodecField<CapabilityClass>[] fields){
+		this.schemaVersion = schemaVersion;
+		this.fields = fields;
+	}
+	
+	/**Starts building a codec with the passed-in schema version.*/
+	public static <CapabilityClass extends ICapability> Builder<CapabilityClass> builder(int schemaVersion){
+		return new Builder<CapabilityClass>(schemaVersion);
+	}
+	
+	public int getSchemaVersion(){
+		return schemaVersion;
+	}
+	
+	/**Writes the schema version and all fields of the passed-in capability to the stream.*/
+	public void write(CapabilityClass capability, DataOutputStream outputStream) throws IOException{
+		SystemDataSaveLoad.writeVarInt(outputStream, schemaVersion);
+		for(CodecField<CapabilityClass> field : fields){
+			if(field.writer != null){
+				field.writer.write(capability, outputStream);
+			}
+		}
+	}
+	
+	/**Reads the fields from the stream into the passed-in capability.  Registry fields are assumed to have current IDs.*/
+	public void read(CapabilityClass capability, DataInputStream inputStream) throws IOException{
+		read(capability, inputStream, null);
+	}
+	
+	/**Reads the fields from the stream into the passed-in capability, using the passed-in mapping to look up registry fields.*/
+	public void read(CapabilityClass capability, DataInputStream inputStream, SystemDataRegistryMapping registryMapping) throws IOException{
+		int savedVersion = SystemDataSaveLoad.readVarInt(inputStream);
+		if(savedVersion > schemaVersion){
+			throw new IOException("Capability " + capability.getName() + " was saved with schema version " + savedVersion + ", but only version " + schemaVersion + " is known!");
+		}
+		for(CodecField<CapabilityClass> field : fields){
+			if(field.sinceVersion <= savedVersion && savedVersion < field.removedVersion){
+				field.reader.read(capability, inputStream, registryMapping);
+			}
+		}
+	}
+	
+	/**Writes a single field of a capability.*/
+	@FunctionalInterface
+	public static interface FieldWriter<CapabilityClass>{
+		public void write(CapabilityClass capability, DataOutputStream outputStream) throws IOException;
+	}
+	
+	/**Reads a single field of a capability.*/
+	@FunctionalInterface
+	public static interface FieldReader<CapabilityClass>{
+		public void read(CapabilityClass capability, DataInputStream inputStream) throws IOException;
+	}
+	
+	private static interface MappedFieldReader<CapabilityClass>{
+		public void read(CapabilityClass capability, DataInputStream inputStream, SystemDataRegistryMapping registryMapping) throws IOException;
+	}
+	
+	private static class CodecField<CapabilityClass>{
+		private final int sinceVersion;
+		private final int removedVersion;
+		/**Null for removed fields, as these are only read.*/
+		private final FieldWriter<CapabilityClass> writer;
+		private final MappedFieldReader<CapabilityClass> reader;
+		
+		private CodecField(int sinceVersion, int removedVersion, FieldWriter<CapabilityClass> writer, MappedFieldReader<CapabilityClass> reader){
+			this.sinceVersion = sinceVersion;
+			this.removedVersion = removedVersion;
+			this.writer = writer;
+			this.reader = reader;
+		}
+	}
+	
+	/**Builder for codecs.  Each field method takes the schema version the field was added in.*/
+	public static class Builder<CapabilityClass extends ICapability>{
+		private final int schemaVersion;
+		private final List<CodecField<CapabilityClass>> fields = new ArrayList<CodecField<CapabilityClass>>();
+		
+		private Builder(int schemaVersion){
+			this.schemaVersion = schemaVersion;
+		}
+		
+		/**Adds a field with a custom writer and reader.  Use this for anything that isn't a plain value.*/
+		public Builder<CapabilityClass> field(int sinceVersion, FieldWriter<CapabilityClass> writer, FieldReader<CapabilityClass> reader){
+			return addField(sinceVersion, Integer.MAX_VALUE, writer, (capability, inputStream, registryMapping) -> reader.read(capability, inputStream));
+		}
+		
+		/**Adds a field that was saved from sinceVersion up to, but not including, removedVersion.
+		 * These fields are never written, but are read from data saved with those versions.
+		 */
+		public Builder<CapabilityClass> removedField(int sinceVersion, int removedVersion, FieldReader<CapabilityClass> reader){
+			if(removedVersion <= sinceVersion){
+				throw new IllegalArgumentException("Attempted to add a field removed in version " + removedVersion + " that was added in version " + sinceVersion + "!");
+			}
+			return addField(sinceVersion, removedVersion, null, (capability, inputStream, registryMapping) -> reader.read(capability, inputStream));
+		}
+		
+		/**Adds an int field.  These are written as zig-zag varints.*/
+		public Builder<CapabilityClass> intField(int sinceVersion, ToIntFunction<CapabilityClass> getter, ObjIntConsumer<CapabilityClass> setter){
+			return field(sinceVersion, (capability, outputStream) -> SystemDataSaveLoad.writeZigZagVarInt(outputStream, getter.applyAsInt(capability)), (capability, inputStream) -> setter.accept(capability, SystemDataSaveLoad.readZigZagVarInt(inputStream)));
+		}
+		
+		/**Adds a long field.  These are written as varlongs, so are best kept for values that are never negative, like tick counts.*/
+		public Builder<CapabilityClass> longField(int sinceVersion, ToLongFunction<CapabilityClass> getter, ObjLongConsumer<CapabilityClass> setter){
+			return field(sinceVersion, (capability, outputStream) -> SystemDataSaveLoad.writeVarLong(outputStream, getter.applyAsLong(capability)), (capability, inputStream) -> setter.accept(capability, SystemDataSaveLoad.readVarLong(inputStream)));
+		}
+		
+		/**Adds a field for an object in the passed-in registry.  These are written as the varint ID of the
+		 * object plus one, with 0 meaning null, and are looked up with the registry mapping passed to the read method.
+		 */
+		public <RegistryObject extends IRegistryObject> Builder<CapabilityClass> registryField(int sinceVersion, ARegistry<RegistryObject> registry, Function<CapabilityClass, RegistryObject> getter, BiConsumer<CapabilityClass, RegistryObject> setter){
+			return addField(sinceVersion, Integer.MAX_VALUE, (capability, outputStream) -> {
+				RegistryObject object = getter.apply(capability);
+				SystemDataSaveLoad.writeVarInt(outputStream, object != null ? registry.getSavedId(object) + 1 : 0);
+			}, (capability, inputStream, registryMapping) -> {
+				int savedID = SystemDataSaveLoad.readVarInt(inputStream) - 1;
+				if(savedID < 0){
+					setter.accept(capability, null);
+				}else{
+					setter.accept(capability, registryMapping != null ? registryMapping.getObject(registry, savedID) : registry.getById(savedID));
+				}
+			});
+		}
+		
+		private Builder<CapabilityClass> addField(int sinceVersion, int removedVersion, FieldWriter<CapabilityClass> writer, MappedFieldReader<CapabilityClass> reader){
+			if(sinceVersion > schemaVersion){
+				throw new IllegalArgumentException("Attempted to add a field for version " + sinceVersion + " to a codec for version " + schemaVersion + "!");
+			}
+			fields.add(new CodecField<CapabilityClass>(sinceVersion, removedVersion, writer, reader));
+			return this;
+		}
+		
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public CapabilityCodec<CapabilityClass> build(){
+			return new CapabilityCodec<CapabilityClass>(schemaVersion, fields.toArray(new CodecField[fields.size()]));
+		}
+	}
+}
@@ -3,8 +3,14 @@
  */
 package capabilities;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import components.Energy;
 import emums.EnumSide;
+import systems.SystemDataCursor;
+import systems.SystemDataRegistryMapping;
 import systems.SystemDataSaveLoad;
 import systems.SystemRegistryManager;
 
@@ -17,10 +23,20 @@ import systems.SystemRegistryManager;
  * is pre-determined at compile time as it is expected that containers will be able
  * to only hold one type of energy.  This may be modified if so desired by extending
  * this class.
+ * <br><br>
+ * All access to the energy and its level goes through the getters and the protected setters,
+ * so sub-classes may keep these values elsewhere, as the handles of {@link CapabilityEnergyStorage} do.
  *
  * @author don_bruce
  */
 public class CapabilityEnergyContainer implements ICapability{
+	public static final CapabilityType<CapabilityEnergyContainer> capabilityType = CapabilityType.create("ENERGY_CONTAINER", CapabilityEnergyContainer.class);
+	private static final CapabilityCodec<CapabilityEnergyContainer> codec = CapabilityCodec.<CapabilityEnergyContainer>builder(2)
+			.removedField(1, 2, (container, inputStream) -> container.setEnergy(SystemRegistryManager.energyRegistry.getEnergy(inputStream.readUTF())))
+			.intField(1, CapabilityEnergyContainer::getCurrentEnergyLevel, CapabilityEnergyContainer::setCurrentEnergyLevel)
+			.registryField(2, SystemRegistryManager.energyRegistry, CapabilityEnergyContainer::getEnergy, CapabilityEnergyContainer::setEnergy)
+			.build();
+	
 	private Energy energy;
 	private int energyLevel;
 	private final int maxEnergyLevel;
@@ -39,11 +55,21 @@ public class CapabilityEnergyContainer implements ICapability{
 		return energy;
 	}
 	
+	/**Sets the energy type this container can store.  Used when loading.*/
+	protected void setEnergy(Energy energy){
+		this.energy = energy;
+	}
+	
 	/**Gets the current energy level of the container.*/
 	public int getCurrentEnergyLevel(){
 		return energyLevel;
 	}
 	
+	/**Sets the current energy level of the container.  No checks are done here, that's up to the caller.*/
+	protected void setCurrentEnergyLevel(int energyLevel){
+		this.energyLevel = energyLevel;
+	}
+	
 	/**Gets the max possible energy level of the container.*/
 	public int getMaxEnergyLevel(){
 		return maxEnergyLevel;
@@ -74,18 +100,12 @@ public class CapabilityEnergyContainer implements ICapability{
 	 * implementation is to add energy to container and return
 	 * the total amount added.  This method should check
 	 * to make sure the energy given can go in the container.
+	 * This calls {@link #fillContainer(Energy, int, boolean)} without
+	 * simulating, so containers that change how filling works should
+	 * override that method instead.
 	 **/	
 	public int fillContainer(Energy energyToFill, int amountToFill){
-		if(energyToFill.equals(getEnergy())){
-			if(getCurrentEnergyLevel() + amountToFill > getMaxEnergyLevel()){
-				amountToFill = getMaxEnergyLevel() - getCurrentEnergyLevel();
-			}
-			this.energyLevel += amountToFill;
-			return amountToFill;
-		}else{
-			//Energy is not what we are storing.
-			return 0;
-		}
+		return fillContainer(energyToFill, amountToFill, false);
 	}
 	
 	/**
@@ -93,15 +113,44 @@ public class CapabilityEnergyContainer implements ICapability{
 	 * implementation is to drain energy and return the total amount
 	 * drained.  This method should check to make sure the energy
 	 * requested to be drained is present and can be drained before
-	 * attempting to drain it.
+	 * attempting to drain it.  Like {@link #fillContainer(Energy, int)},
+	 * this calls {@link #drainContainer(Energy, int, boolean)}, which
+	 * should be overridden instead.
 	 **/	
 	public int drainContainer(Energy energyToDrain, int amountToDrain){
+		return drainContainer(energyToDrain, amountToDrain, false);
+	}
+
+	/**
+	 * Works like {@link #fillContainer(Energy, int)}, but if simulate is true,
+	 * only returns how much would be added without changing anything.
+	 * Both use this method, so a simulated fill always matches a real one.
+	 **/
+	public int fillContainer(Energy energyToFill, int amountToFill, boolean simulate){
+		if(energyToFill.equals(getEnergy())){
+			int amountFilled = Math.max(Math.min(amountToFill, getMaxEnergyLevel() - getCurrentEnergyLevel()), 0);
+			if(!simulate){
+				setCurrentEnergyLevel(getCurrentEnergyLevel() + amountFilled);
+			}
+			return amountFilled;
+		}else{
+			//Energy is not what we are storing.
+			return 0;
+		}
+	}
+	
+	/**
+	 * Works like {@link #drainContainer(Energy, int)}, but if simulate is true,
+	 * only returns how much would be drained without changing anything.
+	 * Both use this method, so a simulated drain always matches a real one.
+	 **/
+	public int drainContainer(Energy energyToDrain, int amountToDrain, boolean simulate){
 		if(energyToDrain.equals(getEnergy())){
-			if(amountToDrain > getCurrentEnergyLevel()){
-				amountToDrain = getCurrentEnergyLevel();
+			int amountDrained = Math.max(Math.min(amountToDrain, getCurrentEnergyLevel()), 0);
+			if(!simulate){
+				setCurrentEnergyLevel(getCurrentEnergyLevel() - amountDrained);
 			}
-			energyLevel -= amountToDrain;
-			return amountToDrain;
+			return amountDrained;
 		}else{
 			//Energy requested to drain is not what we have.
 			return 0;
@@ -110,18 +159,80 @@ public class CapabilityEnergyContainer implements ICapability{
 
 	@Override
 	public String getName(){
-		return "ENERGY_CONTAINER";
+		return capabilityType.getName();
 	}
 
 	@Override
-	public void saveData(){
-		SystemDataSaveLoad.stringMap.put("energy", energy.energyName);
-		SystemDataSaveLoad.integerMap.put("energyLevel", energyLevel);
+	public void saveData(SystemDataSaveLoad data){
+		SystemDataSaveLoad section = data.getSection(getName());
+		//Containers with no energy set have no ID to save, so only their level is saved.
+		if(getEnergy() != null){
+			section.integerMap.put("energyID", SystemRegistryManager.energyRegistry.getSavedId(getEnergy()));
+		}
+		section.integerMap.put("energyLevel", getCurrentEnergyLevel());
 	}
 
 	@Override
 	public void loadData(SystemDataSaveLoad data){
-		energy = SystemRegistryManager.energyRegistry.getEnergy(SystemDataSaveLoad.stringMap.get("energy"));
-		energyLevel = SystemDataSaveLoad.integerMap.get("energyLevel");
+		//Older saves didn't use sections, so fall back to the top-level data if ours is missing.
+		SystemDataSaveLoad section = data.sectionMap.containsKey(getName()) ? data.sectionMap.get(getName()) : data;
+		//Older saves also used the name of the energy rather than its ID.
+		if(section.integerMap.containsKey("energyID")){
+			setEnergy(section.getRegistryObject(SystemRegistryManager.energyRegistry, section.integerMap.get("energyID")));
+		}else{
+			setEnergy(section.stringMap.containsKey("energy") ? SystemRegistryManager.energyRegistry.getEnergy(section.stringMap.get("energy")) : null);
+		}
+		setCurrentEnergyLevel(section.integerMap.containsKey("energyLevel") ? section.integerMap.get("energyLevel") : 0);
+	}
+	
+	@Override
+	public void loadData(SystemDataCursor cursor) throws IOException{
+		//Older saves didn't use sections, so the top-level data is only used if ours is missing.
+		//As the section may come after the top-level data, hold on to that data until all records are read.
+		boolean foundSection = false;
+		boolean foundTopLevel = false;
+		Energy topLevelEnergy = null;
+		int topLevelEnergyLevel = 0;
+		while(cursor.next()){
+			if(cursor.type() == SystemDataSaveLoad.sectionDataCode && cursor.name().equals(getName())){
+				foundSection = true;
+				SystemDataCursor sectionCursor = cursor.readSection();
+				while(sectionCursor.next()){
+					if(sectionCursor.type() == SystemDataSaveLoad.integerDataCode && sectionCursor.name().equals("energyID")){
+						setEnergy(sectionCursor.getRegistryObject(SystemRegistryManager.energyRegistry, sectionCursor.readInt()));
+					}else if(sectionCursor.type() == SystemDataSaveLoad.stringDataCode && sectionCursor.name().equals("energy")){
+						setEnergy(SystemRegistryManager.energyRegistry.getEnergy(sectionCursor.readString()));
+					}else if(sectionCursor.type() == SystemDataSaveLoad.integerDataCode && sectionCursor.name().equals("energyLevel")){
+						setCurrentEnergyLevel(sectionCursor.readInt());
+					}
+				}
+			}else if(!foundSection){
+				//Older saves also used the name of the energy rather than its ID.
+				if(cursor.type() == SystemDataSaveLoad.integerDataCode && cursor.name().equals("energyID")){
+					topLevelEnergy = cursor.getRegistryObject(SystemRegistryManager.energyRegistry, cursor.readInt());
+					foundTopLevel = true;
+				}else if(cursor.type() == SystemDataSaveLoad.stringDataCode && cursor.name().equals("energy")){
+					topLevelEnergy = SystemRegistryManager.energyRegistry.getEnergy(cursor.readString());
+					foundTopLevel = true;
+				}else if(cursor.type() == SystemDataSaveLoad.integerDataCode && cursor.name().equals("energyLevel")){
+					topLevelEnergyLevel = cursor.readInt();
+					foundTopLevel = true;
+				}
+			}
+		}
+		if(!foundSection && foundTopLevel){
+			setEnergy(topLevelEnergy);
+			setCurrentEnergyLevel(topLevelEnergyLevel);
+		}
+	}
+	
+	@Override
+	public void writeData(DataOutputStream outputStream) throws IOException{
+		codec.write(this, outputStream);
+	}
+	
+	@Override
+	public void readData(DataInputStream inputStream, SystemDataRegistryMapping registryMapping) throws IOException{
+		codec.read(this, inputStream, registryMapping);
 	}
 }
@@ -0,0 +1,74 @@
+/**
+ * 
+ */
+package capabilities;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import components.Energy;
+
+/**
+ * A version of {@link CapabilityEnergyContainer} that may be filled and drained from many threads at once.
+ * The energy level is changed with compare-and-set loops rather than locks, so a producer on one worker
+ * thread and a consumer on another can share a container without either blocking or losing energy.
+ * Every fill and drain is clamped to the max level and zero as one atomic step, so a container can never
+ * be over-filled or over-drained, no matter how calls are interleaved.
+ * <br><br>
+ * Use this only for containers that are actually shared between threads, as the plain container is
+ * cheaper for everything else.  Note that only the energy level is safe to change concurrently; the
+ * energy type should only be set while loading, before the container is shared.
+ *
+ * @author don_bruce
+ */
+public class CapabilityEnergyContainerConcurrent extends CapabilityEnergyContainer{
+	private static final AtomicIntegerFieldUpdater<CapabilityEnergyContainerConcurrent> energyLevelUpdater = AtomicIntegerFieldUpdater.newUpdater(CapabilityEnergyContainerConcurrent.class, "energyLevel");
+	
+	private volatile int energyLevel;
+	
+	public CapabilityEnergyContainerConcurrent(int maxEnergyLevel, int inputRate, int outputRate, Energy energy){
+		super(maxEnergyLevel, inputRate, outputRate, energy);
+	}
+	
+	@Override
+	public int getCurrentEnergyLevel(){
+		return energyLevel;
+	}
+	
+	@Override
+	protected void setCurrentEnergyLevel(int energyLevel){
+		this.energyLevel = energyLevel;
+	}
+	
+	@Override
+	public int fillContainer(Energy energyToFill, int amountToFill, boolean simulate){
+		if(energyToFill.equals(getEnergy())){
+			int maxEnergyLevel = getMaxEnergyLevel();
+			while(true){
+				int currentEnergyLevel = energyLevel;
+				int amountFilled = Math.max(Math.min(amountToFill, maxEnergyLevel - currentEnergyLevel), 0);
+				if(amountFilled == 0 || simulate || energyLevelUpdater.compareAndSet(this, currentEnergyLevel, currentEnergyLevel + amountFilled)){
+					return amountFilled;
+				}
+			}
+		}else{
+			//Energy is not what we are storing.
+			return 0;
+		}
+	}
+	
+	@Override
+	public int drainContainer(Energy energyToDrain, int amountToDrain, boolean simulate){
+		if(energyToDrain.equals(getEnergy())){
+			while(true){
+				int currentEnergyLevel = energyLevel;
+				int amountDrained = Math.max(Math.min(amountToDrain, currentEnergyLevel), 0);
+				if(amountDrained == 0 || simulate || energyLevelUpdater.compareAndSet(this, currentEnergyLevel, currentEnergyLevel - amountDrained)){
+					return amountDrained;
+				}
+			}
+		}else{
+			//Energy requested to drain is not what we have.
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/**
+ * 
+ */
+package capabilities;
+
+import java.util.Arrays;
+
+import components.Energy;
+import emums.EnumSide;
+
+/**
+ * This class stores the data of many energy containers in parallel arrays, one per value, rather than
+ * in one object per container.  This keeps the values that are ticked together next to each other in
+ * memory, so ticking lots of containers doesn't mean chasing pointers all over the heap, and lets the
+ * bulk methods here run as plain loops over arrays, which the JIT can unroll and vectorize.
+ * <br><br>
+ * Containers are made with {@link #createContainer(int, int, int, Energy)}, which returns a handle.
+ * Handles are {@link CapabilityEnergyContainer}s like any other, and may be used anywhere one is expected,
+ * but read and write their values from the arrays of this storage.  Once a container is no longer needed,
+ * it should be passed to {@link #releaseContainer(CapabilityEnergyContainer)} so its slot may be re-used.
+ * Released slots have no capacity or rates, so the bulk methods leave them alone without needing to check.
+ * <br><br>
+ * Note that the bulk methods don't check energy types, as all containers in a storage are expected
+ * to be ticked the same way.  Use a storage per energy type should this matter.  This class is not
+ * thread-safe; ticking and container changes should be done from the same thread.
+ *
+ * @author don_bruce
+ */
+public class CapabilityEnergyStorage{
+	private int[] energyLevels;
+	private int[] maxEnergyLevels;
+	private int[] inputRates;
+	private int[] outputRates;
+	private Energy[] energies;
+	/**Number of slots in use or released.  Slots past this have never been used.*/
+	private int slotCount;
+	private int[] freeSlots = new int[16];
+	private int freeSlotCount;
+	
+	public CapabilityEnergyStorage(int initialCapacity){
+		initialCapacity = Math.max(initialCapacity, 16);
+		energyLevels = new int[initialCapacity];
+		maxEnergyLevels = new int[initialCapacity];
+		inputRates = new int[initialCapacity];
+		outputRates = new int[initialCapacity];
+		energies = new Energy[initialCapacity];
+	}
+	
+	/**Creates a container in this storage.  The returned handle should be used like any other container.*/
+	public CapabilityEnergyContainer createContainer(int maxEnergyLevel, int inputRate, int outputRate, Energy energy){
+		int slot;
+		if(freeSlotCount > 0){
+			slot = freeSlots[--freeSlotCount];
+		}else{
+			if(slotCount == energyLevels.length){
+				int newCapacity = energyLevels.length*2;
+				energyLevels = Arrays.copyOf(energyLevels, newCapacity);
+				maxEnergyLevels = Arrays.copyOf(maxEnergyLevels, newCapacity);
+				inputRates = Arrays.copyOf(inputRates, newCapacity);
+				outputRates = Arrays.copyOf(outputRates, newCapacity);
+				energies = Arrays.copyOf(energies, newCapacity);
+			}
+			slot = slotCount++;
+		}
+		energyLevels[slot] = 0;
+		maxEnergyLevels[slot] = maxEnergyLevel;
+		inputRates[slot] = inputRate;
+		outputRates[slot] = outputRate;
+		energies[slot] = energy;
+		return new EnergyContainerHandle(this, slot, maxEnergyLevel, inputRate, outputRate, energy);
+	}
+	
+	/**Releases the slot of the passed-in handle so it may be re-used.  The handle must not be used after this.*/
+	public void releaseContainer(CapabilityEnergyContainer container){
+		EnergyContainerHandle handle = getHandle(container);
+		int slot = handle.slot;
+		energyLevels[slot] = 0;
+		maxEnergyLevels[slot] = 0;
+		inputRates[slot] = 0;
+		outputRates[slot] = 0;
+		energies[slot] = null;
+		handle.slot = -1;
+		if(freeSlotCount == freeSlots.length){
+			freeSlots = Arrays.copyOf(freeSlots, freeSlots.length*2);
+		}
+		freeSlots[freeSlotCount++] = slot;
+	}
+	
+	/**Returns the number of containers in this storage.*/
+	public int getContainerCount(){
+		return slotCount - freeSlotCount;
+	}
+	
+	/**Offers the passed-in amount of energy to every container.  Each container takes as much as its
+	 * input rate and free space allow.  Returns the total amount taken.  Negative amounts are treated as 0.
+	 */
+	public long fillAll(int amountToFill){
+		if(amountToFill <= 0){
+			return 0;
+		}
+		final int[] energyLevels = this.energyLevels;
+		final int[] maxEnergyLevels = this.maxEnergyLevels;
+		final int[] inputRates = this.inputRates;
+		long totalFilled = 0;
+		for(int i=0; i<slotCount; ++i){
+			int amountFilled = Math.min(Math.min(amountToFill, inputRates[i]), maxEnergyLevels[i] - energyLevels[i]);
+			energyLevels[i] += amountFilled;
+			totalFilled += amountFilled;
+		}
+		return totalFilled;
+	}
+	
+	/**Fills every container by its full input rate, or until it is full.  Used for things like generators that make their own energy.*/
+	public void fillAllAtInputRate(){
+		final int[] energyLevels = this.energyLevels;
+		final int[] maxEnergyLevels = this.maxEnergyLevels;
+		final int[] inputRates = this.inputRates;
+		for(int i=0; i<slotCount; ++i){
+			//Add as longs, as a big input rate could otherwise overflow past the max.
+			energyLevels[i] = (int) Math.min((long) energyLevels[i] + inputRates[i], maxEnergyLevels[i]);
+		}
+	}
+	
+	/**Drains every container by its full output rate, or until it is empty.  Returns the total amount drained.*/
+	public long drainAllAtOutputRate(){
+		final int[] energyLevels = this.energyLevels;
+		final int[] outputRates = this.outputRates;
+		long totalDrained = 0;
+		for(int i=0; i<slotCount; ++i){
+			int amountDrained = Math.min(outputRates[i], energyLevels[i]);
+			energyLevels[i] -= amountDrained;
+			totalDrained += amountDrained;
+		}
+		return totalDrained;
+	}
+	
+	/**Returns the total energy in all containers.*/
+	public long getTotalEnergyLevel(){
+		final int[] energyLevels = this.energyLevels;
+		long totalEnergy = 0;
+		for(int i=0; i<slotCount; ++i){
+			totalEnergy += energyLevels[i];
+		}
+		return totalEnergy;
+	}
+	
+	private EnergyContainerHandle getHandle(CapabilityEnergyContainer container){
+		if(!(container instanceof EnergyContainerHandle) || ((EnergyContainerHandle) container).storage != this || ((EnergyContainerHandle) container).slot == -1){
+			throw new IllegalArgumentException("Attempted to use a container that doesn't belong to this storage!");
+		}
+		return (EnergyContainerHandle) container;
+	}
+	
+	/**
+	 * A view of a single slot of a storage.  All values are read from and written to the arrays of the
+	 * storage, so changes made by bulk operations show up here and vice-versa.
+	 */
+	private static final class EnergyContainerHandle extends CapabilityEnergyContainer{
+		private final CapabilityEnergyStorage storage;
+		private int slot;
+		
+		private EnergyContainerHandle(CapabilityEnergyStorage storage, int slot, int maxEnergyLevel, int inputRate, int outputRate, Energy energy){
+			super(maxEnergyLevel, inputRate, outputRate, energy);
+			this.storage = storage;
+			this.slot = slot;
+		}
+		
+		@Override
+		public Energy getEnergy(){
+			return storage.energies[slot];
+		}
+		
+		@Override
+		protected void setEnergy(Energy energy){
+			storage.energies[slot] = energy;
+		}
+		
+		@Override
+		public int getCurrentEnergyLevel(){
+			return storage.energyLevels[slot];
+		}
+		
+		@Override
+		protected void setCurrentEnergyLevel(int energyLevel){
+			storage.energyLevels[slot] = energyLevel;
+		}
+		
+		@Override
+		public int getMaxEnergyLevel(){
+			return storage.maxEnergyLevels[slot];
+		}
+		
+		@Override
+		public int getEnergyInputRate(EnumSide side){
+			return storage.inputRates[slot];
+		}
+		
+		@Override
+		public int getEnergyOutputRate(EnumSide side){
+			return storage.outputRates[slot];
+		}
+	}
+}
@@ -3,8 +3,16 @@
  */
 package capabilities;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import components.Fluid;
 import emums.EnumSide;
+import systems.SystemDataRegistryMapping;
+import systems.SystemDataSaveLoad;
+import systems.SystemRegistryManager;
+import systems.SystemTickClock;
 
 /**
  * This class should be applied to any objects needing to contain fluids.
@@ -15,12 +23,36 @@ import emums.EnumSide;
  * <i>containing<i/> fluids, not objects that <i>are</i> fluids.  That
  * distinction belongs to {@link BlockFluid}, which ironically
  * does not have this capability.
+ * <br><br>
+ * Fluids evaporate and drift towards the ambient temp over time.  Rather than ticking every container,
+ * this is worked out when the container is next read or changed, from the {@link SystemTickClock} tick it
+ * was last brought up to date on, so containers nobody is looking at cost nothing.
+ * <br><br>
+ * As this means even reading a container may change it, containers are not thread-safe, getters included.
+ * Each container must only be used by one thread at a time, such as the thread ticking the system it's part of.
  *
  * @author don_bruce
  */
-public class CapabilityFluidContainer{
+public class CapabilityFluidContainer implements ICapability{
+	public static final CapabilityType<CapabilityFluidContainer> capabilityType = CapabilityType.create("FLUID_CONTAINER", CapabilityFluidContainer.class);
+	/**Temp containers drift towards unless they say otherwise, in degrees celsius.*/
+	public static final int defaultAmbientTemp = 20;
+	/**How many ticks it takes for a fluid to drift one degree towards the ambient temp.*/
+	public static final int tempDriftRate = 20;
+	/**Temp of fluids loaded from data saved before temps were, until the fluid is known.*/
+	private static final int unknownTemp = Integer.MIN_VALUE;
+	private static final CapabilityCodec<CapabilityFluidContainer> codec = CapabilityCodec.<CapabilityFluidContainer>builder(3)
+			.removedField(1, 2, (container, inputStream) -> container.fluid = SystemRegistryManager.fluidRegistry.getFluid(inputStream.readUTF()))
+			.intField(1, container -> container.fluidLevel, (container, fluidLevel) -> container.fluidLevel = fluidLevel)
+			.registryField(2, SystemRegistryManager.fluidRegistry, container -> container.fluid, (container, fluid) -> container.fluid = fluid)
+			.intField(3, container -> container.fluidTemp, (container, fluidTemp) -> container.fluidTemp = fluidTemp)
+			.longField(3, container -> container.lastUpdateTick, (container, lastUpdateTick) -> container.lastUpdateTick = lastUpdateTick)
+			.build();
 	private Fluid fluid;
 	private int fluidLevel;
+	private int fluidTemp;
+	/**Tick the fluid level and temp were last brought up to date on.*/
+	private long lastUpdateTick;
 	private final int maxFluidLevel;
 	private final int inputRate;
 	private final int outputRate;
@@ -32,10 +64,45 @@ public class CapabilityFluidContainer{
 		this.inputRate = inputRate;
 		this.outputRate = outputRate;
 		this.validFluids = validFluids;
+		this.lastUpdateTick = SystemTickClock.getCurrentTick();
+	}
+	
+	/**Brings the fluid level and temp up to date with the current tick.  This is called whenever
+	 * the container is read or changed, and costs nothing if it has already been done this tick.
+	 * This changes the container without locking, which is why containers must be confined to one thread.
+	 */
+	private void update(){
+		long currentTick = SystemTickClock.getCurrentTick();
+		if(currentTick != lastUpdateTick){
+			//Only catch up if time moved forwards, as the clock may be set back when loading an older world.
+			if(fluid != null && currentTick > lastUpdateTick){
+				//Count the times the rate was passed rather than dividing the time passed, so partial periods carry over to the next update.
+				if(fluid.defaultEvaporationRate > 0){
+					long amountEvaporated = currentTick/fluid.defaultEvaporationRate - lastUpdateTick/fluid.defaultEvaporationRate;
+					if(amountEvaporated >= fluidLevel){
+						fluidLevel = 0;
+						fluid = null;
+					}else{
+						fluidLevel -= amountEvaporated;
+					}
+				}
+				if(fluid != null){
+					long tempDrift = currentTick/tempDriftRate - lastUpdateTick/tempDriftRate;
+					int ambientTemp = getAmbientTemp();
+					if(fluidTemp < ambientTemp){
+						fluidTemp = (int) Math.min(ambientTemp, fluidTemp + tempDrift);
+					}else{
+						fluidTemp = (int) Math.max(ambientTemp, fluidTemp - tempDrift);
+					}
+				}
+			}
+			lastUpdateTick = currentTick;
+		}
 	}
 	
 	/**Gets the current fluid in the container.*/
 	public Fluid getFluid(){
+		update();
 		return fluid;
 	}
 	
@@ -44,31 +111,46 @@ public class CapabilityFluidContainer{
 	 * can hold the passed-in fluid.
 	 */
 	public void setFluid(Fluid newFluid){
+		update();
 		if(newFluid == null){
 			fluid = null;
 		}else{
-			if(fluidLevel == 0 || fluid == null){
-				if(validFluids != null){
-					for(Fluid validFluid : validFluids){
-						if(validFluid.equals(newFluid)){
-							fluid = newFluid;
-						}
-					}
-				}else{
-					fluid = newFluid;
+			if((fluidLevel == 0 || fluid == null) && isFluidValid(newFluid)){
+				fluid = newFluid;
+			}
+		}
+	}
+	
+	/**Returns true if this container can hold the passed-in fluid.*/
+	public boolean isFluidValid(Fluid fluidToCheck){
+		if(validFluids != null){
+			for(Fluid validFluid : validFluids){
+				if(validFluid.equals(fluidToCheck)){
+					return true;
 				}
 			}
+			return false;
+		}else{
+			return true;
 		}
 	}
 	
-	/**Gets the current fluid temp.  Defaults to the data provided by the fluid itself,
-	 * but can be changed in other container implementations if so desired.*/
+	/**Gets the current fluid temp.  Fluids start at the temp provided by the fluid itself, mix with the temp of
+	 * fluid added to them, and drift towards the ambient temp over time.  Empty containers return the ambient temp.*/
 	public int getFluidTemp(){
-		return getFluid().defaultTemp;
+		update();
+		return fluid != null ? fluidTemp : getAmbientTemp();
+	}
+	
+	/**Gets the temp fluids in this container drift towards.  Can be changed in other container implementations,
+	 * such as heated or cooled tanks, if so desired.*/
+	public int getAmbientTemp(){
+		return defaultAmbientTemp;
 	}
 	
 	/**Gets the current fluid level of the container.*/
 	public int getCurrentFluidLevel(){
+		update();
 		return fluidLevel;
 	}
 	
@@ -102,25 +184,13 @@ public class CapabilityFluidContainer{
 	 * implementation is to add fluid to container and return
 	 * the total amount added.  This method should check
 	 * to make sure the fluid given can go in the container.
+	 * Added fluid comes in at its default temp.  This calls
+	 * {@link #fillContainer(Fluid, int, int, boolean)} without
+	 * simulating, so containers that change how filling works should
+	 * override that method instead.
 	 **/	
 	public int fillContainer(Fluid fluidToFill, int amountToFill){
-		if(getFluid() == null){
-			setFluid(fluidToFill);
-			if(getFluid() == null){
-				//We can't store this fluid here;
-				return 0;
-			}
-		}
-		if(fluidToFill.equals(getFluid())){
-			if(getCurrentFluidLevel() + amountToFill > getMaxFluidLevel()){
-				amountToFill = getMaxFluidLevel() - getCurrentFluidLevel();
-			}
-			this.fluidLevel += amountToFill;
-			return amountToFill;
-		}else{
-			//Fluid is not what we are storing.
-			return 0;
-		}
+		return fillContainer(fluidToFill, amountToFill, false);
 	}
 	
 	/**
@@ -129,21 +199,130 @@ public class CapabilityFluidContainer{
 	 * drained.  This method should check to make sure the fluid
 	 * requested to be drained is present and can be drained before
 	 * attempting to drain it.  It should also set the current fluid
-	 * to null if the level hits 0 during this operation.
+	 * to null if the level hits 0 during this operation.  Like
+	 * {@link #fillContainer(Fluid, int)}, this calls
+	 * {@link #drainContainer(Fluid, int, boolean)}, which should be
+	 * overridden instead.
 	 **/	
 	public int drainContainer(Fluid fluidToDrain, int amountToDrain){
-		if(fluidToDrain.equals(getFluid())){
-			if(amountToDrain > getCurrentFluidLevel()){
-				amountToDrain = getCurrentFluidLevel();
+		return drainContainer(fluidToDrain, amountToDrain, false);
+	}
+
+	/**
+	 * Works like {@link #fillContainer(Fluid, int)}, but if simulate is true,
+	 * only returns how much would be added without changing anything.
+	 **/
+	public int fillContainer(Fluid fluidToFill, int amountToFill, boolean simulate){
+		return fillContainer(fluidToFill, amountToFill, fluidToFill.defaultTemp, simulate);
+	}
+	
+	/**
+	 * Works like {@link #fillContainer(Fluid, int, boolean)}, but the added fluid comes in at the
+	 * passed-in temp rather than its default one.  Use this when moving fluid out of another container,
+	 * passing the {@link #getFluidTemp()} of that container, so the fluid keeps its temp.  All fills,
+	 * real or simulated, use this method, so a simulated fill always matches a real one.
+	 **/
+	public int fillContainer(Fluid fluidToFill, int amountToFill, int fillTemp, boolean simulate){
+		Fluid currentFluid = getFluid();
+		if(currentFluid == null ? isFluidValid(fluidToFill) : fluidToFill.equals(currentFluid)){
+			int amountFilled = Math.max(Math.min(amountToFill, getMaxFluidLevel() - getCurrentFluidLevel()), 0);
+			if(!simulate && amountFilled > 0){
+				if(currentFluid == null){
+					setFluid(fluidToFill);
+					if(getFluid() == null){
+						//We can't store this fluid here;
+						return 0;
+					}
+				}
+				//Added fluid mixes with what's here.
+				fluidTemp = fluidLevel == 0 ? fillTemp : (int) (((long) fluidTemp*fluidLevel + (long) fillTemp*amountFilled)/(fluidLevel + amountFilled));
+				fluidLevel += amountFilled;
 			}
-			fluidLevel -= amountToDrain;
-			if(fluidLevel == 0){
-				setFluid(null);
+			return amountFilled;
+		}else{
+			//Fluid is not what we are storing.
+			return 0;
+		}
+	}
+	
+	/**
+	 * Works like {@link #drainContainer(Fluid, int)}, but if simulate is true,
+	 * only returns how much would be drained without changing anything.
+	 * Both use this method, so a simulated drain always matches a real one.
+	 **/
+	public int drainContainer(Fluid fluidToDrain, int amountToDrain, boolean simulate){
+		if(fluidToDrain.equals(getFluid())){
+			int amountDrained = Math.max(Math.min(amountToDrain, getCurrentFluidLevel()), 0);
+			if(!simulate){
+				fluidLevel -= amountDrained;
+				if(fluidLevel == 0){
+					setFluid(null);
+				}
 			}
-			return amountToDrain;
+			return amountDrained;
 		}else{
 			//Fluid requested to drain is not what we have.
 			return 0;
 		}
 	}
+
+	@Override
+	public String getName(){
+		return capabilityType.getName();
+	}
+
+	@Override
+	public void saveData(SystemDataSaveLoad data){
+		update();
+		if(fluid != null){
+			SystemDataSaveLoad section = data.getSection(getName());
+			section.integerMap.put("fluidID", SystemRegistryManager.fluidRegistry.getSavedId(fluid));
+			section.integerMap.put("fluidLevel", fluidLevel);
+			section.integerMap.put("fluidTemp", fluidTemp);
+			section.longMap.put("lastUpdateTick", lastUpdateTick);
+		}
+	}
+
+	@Override
+	public void loadData(SystemDataSaveLoad data){
+		SystemDataSaveLoad section = data.sectionMap.get(getName());
+		if(section == null){
+			fluid = null;
+		}else if(section.integerMap.containsKey("fluidID")){
+			fluid = section.getRegistryObject(SystemRegistryManager.fluidRegistry, section.integerMap.get("fluidID"));
+		}else{
+			//Older saves used the name of the fluid rather than its ID.
+			fluid = section.stringMap.containsKey("fluid") ? SystemRegistryManager.fluidRegistry.getFluid(section.stringMap.get("fluid")) : null;
+		}
+		if(fluid != null){
+			fluidLevel = section.integerMap.containsKey("fluidLevel") ? section.integerMap.get("fluidLevel") : 0;
+			//Older saves didn't have temps or update ticks, so start those from now.
+			fluidTemp = section.integerMap.containsKey("fluidTemp") ? section.integerMap.get("fluidTemp") : fluid.defaultTemp;
+			lastUpdateTick = section.longMap.containsKey("lastUpdateTick") ? section.longMap.get("lastUpdateTick") : SystemTickClock.getCurrentTick();
+		}else{
+			//Either nothing was saved, or the saved fluid is no longer registered, so start empty.
+			fluidLevel = 0;
+			lastUpdateTick = SystemTickClock.getCurrentTick();
+		}
+	}
+	
+	@Override
+	public void writeData(DataOutputStream outputStream) throws IOException{
+		update();
+		codec.write(this, outputStream);
+	}
+	
+	@Override
+	public void readData(DataInputStream inputStream, SystemDataRegistryMapping registryMapping) throws IOException{
+		//Data saved before version 3 has no temp or update tick, so start those from now.
+		fluidTemp = unknownTemp;
+		lastUpdateTick = SystemTickClock.getCurrentTick();
+		codec.read(this, inputStream, registryMapping);
+		if(fluid == null){
+			//The saved fluid may no longer be registered, so start empty.
+			fluidLevel = 0;
+		}else if(fluidTemp == unknownTemp){
+			fluidTemp = fluid.defaultTemp;
+		}
+	}
 }
@@ -0,0 +1,82 @@
+/**
+ * 
+ */
+package capabilities;
+
+import java.util.Arrays;
+
+import systems.SystemDataSaveLoad;
+
+/**
+ * This class holds the capabilities attached to a single object, such as a block or item.
+ * Capabilities are kept in an array slot matching the index of their {@link CapabilityType},
+ * so {@link #get(CapabilityType)} is just a bounds check and an array read, with no hashing
+ * or allocation.  The array only grows as large as the highest index attached, so objects
+ * with few capabilities stay small.  Objects that have capabilities should keep one of these
+ * and ask it for capabilities rather than storing each one in its own field.
+ * <br><br>
+ * Like the objects that hold it, this class isn't thread-safe.  Attach and detach capabilities
+ * from the thread that owns the object.
+ *
+ * @author don_bruce
+ */
+public class CapabilityHolder{
+	private static final ICapability[] noCapabilities = new ICapability[0];
+	
+	private ICapability[] capabilities = noCapabilities;
+	
+	/**Gets the capability of the passed-in type, or null if no capability of that type is attached.*/
+	@SuppressWarnings("unchecked")
+	public <CapabilityClass extends ICapability> CapabilityClass get(CapabilityType<CapabilityClass> type){
+		int index = type.getIndex();
+		return index < capabilities.length ? (CapabilityClass) capabilities[index] : null;
+	}
+	
+	/**Returns true if a capability of the passed-in type is attached.*/
+	public boolean has(CapabilityType<?> type){
+		int index = type.getIndex();
+		return index < capabilities.length && capabilities[index] != null;
+	}
+	
+	/**Attaches the passed-in capability, replacing any capability of the same type.
+	 * Returns the capability that was replaced, or null if there was none.
+	 */
+	public <CapabilityClass extends ICapability> CapabilityClass attach(CapabilityType<CapabilityClass> type, CapabilityClass capability){
+		int index = type.getIndex();
+		if(index >= capabilities.length){
+			capabilities = Arrays.copyOf(capabilities, index + 1);
+		}
+		CapabilityClass replaced = type.getCapabilityClass().cast(capabilities[index]);
+		capabilities[index] = type.getCapabilityClass().cast(capability);
+		return replaced;
+	}
+	
+	/**Detaches the capability of the passed-in type.  Returns the capability that was detached, or null if there was none.*/
+	public <CapabilityClass extends ICapability> CapabilityClass detach(CapabilityType<CapabilityClass> type){
+		CapabilityClass detached = get(type);
+		if(detached != null){
+			capabilities[type.getIndex()] = null;
+		}
+		return detached;
+	}
+	
+	/**Saves the data of all attached capabilities to the passed-in context.*/
+	public void saveData(SystemDataSaveLoad data){
+		for(ICapability capability : capabilities){
+			if(capability != null){
+				capability.saveData(data);
+			}
+		}
+	}
+	
+	/**Loads the data of all attached capabilities from the passed-in context.  As noted in {@link ICapability},
+	 * capabilities must be attached before this is called or they will miss out on their data.
+	 */
+	public void loadData(SystemDataSaveLoad data){
+		for(ICapability capability : capabilities){
+			if(capability != null){
+				capability.loadData(data);
+			}
+		}
+	}
+}
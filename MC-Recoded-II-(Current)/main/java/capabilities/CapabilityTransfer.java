@@ -0,0 +1,302 @@
+/**
+ * 
+ */
+package capabilities;
+
+import components.Energy;
+import components.Fluid;
+import emums.EnumTransferMode;
+
+/**
+ * This class moves energy or fluid from one container to many, or from many containers to many, in one call.
+ * The amount each container can give or take is found first with simulated drains and fills, and is then split
+ * with the passed-in {@link EnumTransferMode}.  Destinations are then filled, and the sources drained by exactly
+ * what the destinations took.  Should a source give less than it said it would, the rest is taken from the other
+ * sources, or failing that taken back from the destinations, so nothing is ever made or lost.  This
+ * replaces calling fill in a loop with guessed amounts, and gives the same result no matter the order of the
+ * destinations when using {@link EnumTransferMode#FAIR_SHARE}.
+ * <br><br>
+ * Transfers may be simulated, in which case nothing changes, but the amounts are worked out all the same.
+ * After any transfer, {@link #getSourceAmount(int)} and {@link #getDestinationAmount(int)} return how much each
+ * container gave or took, so machines may simulate first to decide what to do.  The arrays passed in are
+ * only read up to the passed-in counts, so callers may keep and re-use arrays larger than they need.
+ * <br><br>
+ * Negative max amounts are treated as 0.  Moved fluid keeps its temp, mixed from the sources by how much each gives.
+ * <br><br>
+ * A transfer object keeps scratch arrays between calls and doesn't allocate once they're large enough.
+ * For this reason it is not thread-safe; each thread or system moving things should have its own.
+ *
+ * @author don_bruce
+ */
+public class CapabilityTransfer{
+	private final TransferAdapter<CapabilityEnergyContainer, Energy> energyAdapter = new TransferAdapter<CapabilityEnergyContainer, Energy>(){
+		@Override
+		public Energy getStored(CapabilityEnergyContainer container){
+			return container.getCurrentEnergyLevel() > 0 ? container.getEnergy() : null;
+		}
+		
+		@Override
+		public int getOutputRate(CapabilityEnergyContainer container){
+			return container.getEnergyOutputRate(null);
+		}
+		
+		@Override
+		public int getInputRate(CapabilityEnergyContainer container){
+			return container.getEnergyInputRate(null);
+		}
+		
+		@Override
+		public int drain(CapabilityEnergyContainer container, Energy energy, int amount, boolean simulate){
+			return container.drainContainer(energy, amount, simulate);
+		}
+		
+		@Override
+		public int fill(CapabilityEnergyContainer container, Energy energy, int amount, boolean simulate){
+			return container.fillContainer(energy, amount, simulate);
+		}
+	};
+	private final TransferAdapter<CapabilityFluidContainer, Fluid> fluidAdapter = new TransferAdapter<CapabilityFluidContainer, Fluid>(){
+		/**Temp of the fluid being moved, mixed from the sources by how much each is to give.*/
+		private int fillTemp;
+		
+		@Override
+		public Fluid getStored(CapabilityFluidContainer container){
+			return container.getCurrentFluidLevel() > 0 ? container.getFluid() : null;
+		}
+		
+		@Override
+		public int getOutputRate(CapabilityFluidContainer container){
+			return container.getFluidOutputRate(null);
+		}
+		
+		@Override
+		public int getInputRate(CapabilityFluidContainer container){
+			return container.getFluidInputRate(null);
+		}
+		
+		@Override
+		public int drain(CapabilityFluidContainer container, Fluid fluid, int amount, boolean simulate){
+			return container.drainContainer(fluid, amount, simulate);
+		}
+		
+		@Override
+		public void prepareFill(Fluid fluid, CapabilityFluidContainer[] sources, int[] amounts, int sourceCount){
+			long totalAmount = 0;
+			long totalTemp = 0;
+			for(int i=0; i<sourceCount; ++i){
+				if(amounts[i] > 0){
+					totalAmount += amounts[i];
+					totalTemp += (long) sources[i].getFluidTemp()*amounts[i];
+				}
+			}
+			fillTemp = totalAmount > 0 ? (int) (totalTemp/totalAmount) : fluid.defaultTemp;
+		}
+		
+		@Override
+		public int fill(CapabilityFluidContainer container, Fluid fluid, int amount, boolean simulate){
+			return container.fillContainer(fluid, amount, fillTemp, simulate);
+		}
+	};
+	private int[] sourceLimits = new int[8];
+	private int[] sourceAmounts = new int[8];
+	private int[] destinationLimits = new int[8];
+	private int[] destinationAmounts = new int[8];
+	private final CapabilityEnergyContainer[] singleEnergySource = new CapabilityEnergyContainer[1];
+	private final CapabilityFluidContainer[] singleFluidSource = new CapabilityFluidContainer[1];
+	
+	/**Returns how much the source at the passed-in position gave in the last transfer.*/
+	public int getSourceAmount(int sourceNumber){
+		return sourceAmounts[sourceNumber];
+	}
+	
+	/**Returns how much the destination at the passed-in position took in the last transfer.*/
+	public int getDestinationAmount(int destinationNumber){
+		return destinationAmounts[destinationNumber];
+	}
+	
+	/**Moves up to the passed-in amount of energy from the source to the destinations.  Returns the amount moved,
+	 * or that would be moved if simulating.
+	 */
+	public int transferEnergy(CapabilityEnergyContainer source, CapabilityEnergyContainer[] destinations, int destinationCount, int maxAmount, EnumTransferMode mode, boolean simulate){
+		singleEnergySource[0] = source;
+		try{
+			return transferEnergy(singleEnergySource, 1, destinations, destinationCount, maxAmount, mode, simulate);
+		}finally{
+			singleEnergySource[0] = null;
+		}
+	}
+	
+	/**Moves up to the passed-in amount of energy from the sources to the destinations.  Only energy of the same type
+	 * as the first source with energy is moved.  Returns the amount moved, or that would be moved if simulating.
+	 */
+	public int transferEnergy(CapabilityEnergyContainer[] sources, int sourceCount, CapabilityEnergyContainer[] destinations, int destinationCount, int maxAmount, EnumTransferMode mode, boolean simulate){
+		return transfer(energyAdapter, sources, sourceCount, destinations, destinationCount, maxAmount, mode, simulate);
+	}
+	
+	/**Moves up to the passed-in amount of fluid from the source to the destinations.  Returns the amount moved,
+	 * or that would be moved if simulating.
+	 */
+	public int transferFluid(CapabilityFluidContainer source, CapabilityFluidContainer[] destinations, int destinationCount, int maxAmount, EnumTransferMode mode, boolean simulate){
+		singleFluidSource[0] = source;
+		try{
+			return transferFluid(singleFluidSource, 1, destinations, destinationCount, maxAmount, mode, simulate);
+		}finally{
+			singleFluidSource[0] = null;
+		}
+	}
+	
+	/**Moves up to the passed-in amount of fluid from the sources to the destinations.  Only fluid of the same type
+	 * as the first source with fluid is moved.  Returns the amount moved, or that would be moved if simulating.
+	 */
+	public int transferFluid(CapabilityFluidContainer[] sources, int sourceCount, CapabilityFluidContainer[] destinations, int destinationCount, int maxAmount, EnumTransferMode mode, boolean simulate){
+		return transfer(fluidAdapter, sources, sourceCount, destinations, destinationCount, maxAmount, mode, simulate);
+	}
+	
+	/**Does the transfer for both energy and fluid.  Only how containers are drained and filled differs, which the adapter handles.*/
+	private <Container, Stored> int transfer(TransferAdapter<Container, Stored> adapter, Container[] sources, int sourceCount, Container[] destinations, int destinationCount, int maxAmount, EnumTransferMode mode, boolean simulate){
+		maxAmount = Math.max(maxAmount, 0);
+		ensureCapacity(sourceCount, destinationCount);
+		Stored stored = null;
+		for(int i=0; i<sourceCount && stored == null; ++i){
+			stored = adapter.getStored(sources[i]);
+		}
+		if(stored == null){
+			clearAmounts(sourceCount, destinationCount);
+			return 0;
+		}
+		
+		long totalAvailable = 0;
+		for(int i=0; i<sourceCount; ++i){
+			sourceLimits[i] = adapter.drain(sources[i], stored, adapter.getOutputRate(sources[i]), true);
+			totalAvailable += sourceLimits[i];
+		}
+		int available = (int) Math.min(totalAvailable, maxAmount);
+		for(int i=0; i<destinationCount; ++i){
+			destinationLimits[i] = adapter.fill(destinations[i], stored, Math.min(adapter.getInputRate(destinations[i]), available), true);
+		}
+		int amountToMove = split(destinationLimits, destinationAmounts, destinationCount, available, mode);
+		split(sourceLimits, sourceAmounts, sourceCount, amountToMove, mode);
+		
+		if(simulate || amountToMove == 0){
+			return amountToMove;
+		}
+		
+		//Fill first, then drain exactly what was taken, using what each container says it really did.
+		adapter.prepareFill(stored, sources, sourceAmounts, sourceCount);
+		int amountFilled = 0;
+		for(int i=0; i<destinationCount; ++i){
+			if(destinationAmounts[i] > 0){
+				destinationAmounts[i] = adapter.fill(destinations[i], stored, destinationAmounts[i], false);
+				amountFilled += destinationAmounts[i];
+			}
+		}
+		split(sourceLimits, sourceAmounts, sourceCount, amountFilled, mode);
+		int amountDrained = 0;
+		for(int i=0; i<sourceCount; ++i){
+			if(sourceAmounts[i] > 0){
+				sourceAmounts[i] = adapter.drain(sources[i], stored, sourceAmounts[i], false);
+				amountDrained += sourceAmounts[i];
+			}
+		}
+		//Should a source give less than it said, take the rest from sources with room left under their limits.
+		for(int i=0; i<sourceCount && amountDrained < amountFilled; ++i){
+			if(sourceLimits[i] > sourceAmounts[i]){
+				int amountGiven = adapter.drain(sources[i], stored, Math.min(sourceLimits[i] - sourceAmounts[i], amountFilled - amountDrained), false);
+				sourceAmounts[i] += amountGiven;
+				amountDrained += amountGiven;
+			}
+		}
+		//If that's still not enough, take back what couldn't be paid for from the destinations.
+		for(int i=destinationCount - 1; i>=0 && amountFilled > amountDrained; --i){
+			if(destinationAmounts[i] > 0){
+				int amountRefunded = adapter.drain(destinations[i], stored, Math.min(destinationAmounts[i], amountFilled - amountDrained), false);
+				destinationAmounts[i] -= amountRefunded;
+				amountFilled -= amountRefunded;
+			}
+		}
+		return amountFilled;
+	}
+	
+	/**Splits up to the passed-in total between containers, never giving one more than its limit.
+	 * Each container's share is put in the passed-in amounts.  Returns the total handed out.
+	 */
+	private static int split(int[] limits, int[] amounts, int count, int total, EnumTransferMode mode){
+		int remaining = total;
+		if(mode == EnumTransferMode.PRIORITY){
+			for(int i=0; i<count; ++i){
+				amounts[i] = Math.min(limits[i], remaining);
+				remaining -= amounts[i];
+			}
+		}else{
+			//Hand out equal shares in rounds.  Containers that fill up drop out, and what they couldn't take goes round again.
+			int containersLeft = 0;
+			for(int i=0; i<count; ++i){
+				amounts[i] = 0;
+				if(limits[i] > 0){
+					++containersLeft;
+				}
+			}
+			while(remaining > 0 && containersLeft > 0){
+				int share = remaining/containersLeft;
+				if(share == 0){
+					//Fewer units left than containers, so give one each to the first ones with room.
+					for(int i=0; i<count && remaining > 0; ++i){
+						if(amounts[i] < limits[i]){
+							++amounts[i];
+							--remaining;
+						}
+					}
+					break;
+				}
+				for(int i=0; i<count; ++i){
+					if(amounts[i] < limits[i]){
+						int amountGiven = Math.min(share, limits[i] - amounts[i]);
+						amounts[i] += amountGiven;
+						remaining -= amountGiven;
+						if(amounts[i] == limits[i]){
+							--containersLeft;
+						}
+					}
+				}
+			}
+		}
+		return total - remaining;
+	}
+	
+	private void ensureCapacity(int sourceCount, int destinationCount){
+		if(sourceLimits.length < sourceCount){
+			sourceLimits = new int[sourceCount];
+			sourceAmounts = new int[sourceCount];
+		}
+		if(destinationLimits.length < destinationCount){
+			destinationLimits = new int[destinationCount];
+			destinationAmounts = new int[destinationCount];
+		}
+	}
+	
+	/**How the transfer reads, drains, and fills one kind of container.*/
+	private static interface TransferAdapter<Container, Stored>{
+		/**Returns what the container holds, or null if it's empty.*/
+		public Stored getStored(Container container);
+		
+		public int getOutputRate(Container container);
+		
+		public int getInputRate(Container container);
+		
+		public int drain(Container container, Stored stored, int amount, boolean simulate);
+		
+		/**Called before the real fills with what each source is to give, as the sources are only drained after.*/
+		public default void prepareFill(Stored stored, Container[] sources, int[] amounts, int sourceCount){}
+		
+		public int fill(Container container, Stored stored, int amount, boolean simulate);
+	}
+	
+	private void clearAmounts(int sourceCount, int destinationCount){
+		for(int i=0; i<sourceCount; ++i){
+			sourceAmounts[i] = 0;
+		}
+		for(int i=0; i<destinationCount; ++i){
+			destinationAmounts[i] = 0;
+		}
+	}
+}
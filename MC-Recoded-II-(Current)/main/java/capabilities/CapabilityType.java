@@ -0,0 +1,75 @@
+/**
+ * 
+ */
+package capabilities;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class identifies a kind of capability.  Each type is given a small index when it's created,
+ * starting at 0, which {@link CapabilityHolder} uses to find capabilities with a single array access
+ * rather than comparing names.  Types should be created once, in a static field of the capability
+ * class they are for, and that field used whenever the capability is looked up.  For example:
+ * <pre>
+ * public static final CapabilityType&lt;CapabilityEnergyContainer&gt; capabilityType = CapabilityType.create("ENERGY_CONTAINER", CapabilityEnergyContainer.class);
+ * </pre>
+ * The name of a type should be the same as the name returned by {@link ICapability#getName()}, so the
+ * type may be found again from saved data with {@link #getByName(String)}.
+ *
+ * @author don_bruce
+ */
+public final class CapabilityType<CapabilityClass extends ICapability>{
+	private static final Map<String, CapabilityType<?>> typesByName = new ConcurrentHashMap<String, CapabilityType<?>>();
+	private static int nextIndex;
+	
+	private final String name;
+	private final Class<CapabilityClass> capabilityClass;
+	private final int index;
+	
+	private CapabilityType(String name, Class<CapabilityClass> capabilityClass, int index){
+		this.name = name;
+		this.capabilityClass = capabilityClass;
+		this.index = index;
+	}
+	
+	/**Creates a new capability type with the next free index.  Names must be unique, so creating
+	 * a type with the same name as an existing one will throw an IllegalArgumentException.
+	 */
+	public static synchronized <CapabilityClass extends ICapability> CapabilityType<CapabilityClass> create(String name, Class<CapabilityClass> capabilityClass){
+		if(typesByName.containsKey(name)){
+			throw new IllegalArgumentException("Attempted to create a capability type named " + name + ", but a type with that name already exists!");
+		}
+		CapabilityType<CapabilityClass> type = new CapabilityType<CapabilityClass>(name, capabilityClass, nextIndex++);
+		typesByName.put(name, type);
+		return type;
+	}
+	
+	/**Gets the type with the passed-in name, or null if no such type exists.*/
+	public static CapabilityType<?> getByName(String name){
+		return typesByName.get(name);
+	}
+	
+	/**Returns the number of types created so far.  All indexes are less than this.*/
+	public static synchronized int getTypeCount(){
+		return nextIndex;
+	}
+	
+	public String getName(){
+		return name;
+	}
+	
+	public Class<CapabilityClass> getCapabilityClass(){
+		return capabilityClass;
+	}
+	
+	/**Returns the index of this type.  This never changes once the type is created.*/
+	public int getIndex(){
+		return index;
+	}
+	
+	@Override
+	public String toString(){
+		return name;
+	}
+}
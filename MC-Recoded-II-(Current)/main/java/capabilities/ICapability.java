@@ -3,6 +3,14 @@
  */
 package capabilities;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import systems.SystemDataCursor;
+import systems.SystemDataRegistryMapping;
 import systems.SystemDataSaveLoad;
 
 /**
@@ -16,6 +24,9 @@ import systems.SystemDataSaveLoad;
  * implements that capability.  This is important to note as any capability that needs to load data
  * from disk must be present <i>before</i> the class is loaded from disk or it will miss out on the
  * saved data retrieved from disk!
+ * <br><br>
+ * Objects keep their capabilities in a {@link CapabilityHolder}, which finds them by their {@link CapabilityType}.
+ * Each capability class should create its type once, in a static field, with the same name as {@link #getName()}.
  *
  * @author don_bruce
  */
@@ -24,17 +35,66 @@ public interface ICapability{
 	public String getName();
 	
 	/**Called during saving operations to allow this capability to save its data.
-	 *Data should be copied into the maps of {@link SystemDataSaveLoad} during this method.
+	 *Data should be copied into the maps of the passed-in {@link SystemDataSaveLoad} context during this method.
+	 *To prevent name collisions with other capabilities, data should go in the section named after this
+	 *capability, which can be gotten via {@link SystemDataSaveLoad#getSection(String)} with {@link #getName()}.
 	 *Note that data from the object that has this capability will be present in the maps
-	 *at this point, and modifications to that data will be reflected in the data that is saved. 
+	 *at this point, and modifications to that data will be reflected in the data that is saved.
+	 *The context is only valid for the current save operation, so don't hold onto it!
 	 **/
-	public void saveData();
+	public void saveData(SystemDataSaveLoad data);
 	
 	/**Called whenever the object that has this capability is loaded from save data.
-	 * Data should be copied from the maps of {@link SystemDataSaveLoad} into local variables of this
+	 * Data should be copied from the maps of the passed-in {@link SystemDataSaveLoad} context into local variables of this
 	 * capability.  Note that while the data of the object that has this capability is present in the
 	 * maps at this time, it has already been copied over to the object, so modification of that data
 	 * will NOT affect the object.
 	 */
 	public void loadData(SystemDataSaveLoad data);
+	
+	/**Like {@link #loadData(SystemDataSaveLoad)}, but reads the data record-by-record from the passed-in
+	 * cursor rather than from the maps.  Capabilities that load a lot of data should override this to read
+	 * values directly into their variables, skipping anything they don't need.  The default implementation
+	 * reads the remaining records into a new context and calls the map-based method.
+	 */
+	public default void loadData(SystemDataCursor cursor) throws IOException{
+		SystemDataSaveLoad data = new SystemDataSaveLoad();
+		data.setRegistryMapping(cursor.getRegistryMapping());
+		cursor.readRemaining(data);
+		loadData(data);
+	}
+	
+	/**Writes the data of this capability straight to the passed-in stream.  This is used by systems that save
+	 * capabilities in bulk, and is a lot faster than {@link #saveData(SystemDataSaveLoad)} for capabilities that
+	 * override it with a {@link CapabilityCodec}.  The default implementation saves to a new context with the
+	 * map-based method and writes the result as a length-prefixed block, so all capabilities may be saved this way.
+	 * Whatever is written here must be readable by {@link #readData(DataInputStream)}.
+	 */
+	public default void writeData(DataOutputStream outputStream) throws IOException{
+		SystemDataSaveLoad data = new SystemDataSaveLoad();
+		saveData(data);
+		ByteArrayOutputStream dataBytes = new ByteArrayOutputStream();
+		data.saveDataToStream(new DataOutputStream(dataBytes));
+		SystemDataSaveLoad.writeVarInt(outputStream, dataBytes.size());
+		dataBytes.writeTo(outputStream);
+	}
+	
+	/**Reads the data written by {@link #writeData(DataOutputStream)} from the passed-in stream.
+	 * Registered objects are assumed to have been saved with their current IDs.
+	 */
+	public default void readData(DataInputStream inputStream) throws IOException{
+		readData(inputStream, null);
+	}
+	
+	/**Like {@link #readData(DataInputStream)}, but uses the passed-in mapping to look up registered objects
+	 * by their saved IDs.  Capabilities that override the writing method should override this one for reading.
+	 */
+	public default void readData(DataInputStream inputStream, SystemDataRegistryMapping registryMapping) throws IOException{
+		byte[] dataBytes = new byte[SystemDataSaveLoad.readVarInt(inputStream)];
+		inputStream.readFully(dataBytes);
+		SystemDataSaveLoad data = new SystemDataSaveLoad();
+		data.setRegistryMapping(registryMapping);
+		data.loadDataFromStream(new DataInputStream(new ByteArrayInputStream(dataBytes)));
+		loadData(data);
+	}
 }
@@ -0,0 +1,16 @@
+package emums;
+
+/**
+* This enum is used to pick how a transfer splits what it moves between containers.
+* FAIR_SHARE gives every container an equal share, with any share a container can't
+* take passed on to the others, so the result is as even as the containers allow.
+* PRIORITY goes through the containers in order, giving each as much as it can take
+* before moving on to the next, so earlier containers are always served first.
+*
+* @author don_bruce
+*/
+public enum EnumTransferMode{
+	FAIR_SHARE, PRIORITY;
+	
+	private EnumTransferMode(){}
+}
@@ -1,7 +1,17 @@
 package registries;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 import systems.SystemRegistryManager;
 
@@ -15,15 +25,36 @@ import systems.SystemRegistryManager;
  * should those systems expect something to be registered that is not.
  * Note that all registered things are fully-constructed classes, not
  * the class itself.
+ * <br><br>
+ * Registries have two phases.  During bootstrap, objects may be registered and removed freely,
+ * from as many threads as you like, so content may be loaded in parallel.  Once all registration
+ * is done, the registry is frozen with {@link #freeze()}, normally by {@link SystemRegistryManager#freezeRegistries()}.  This turns the registry into an immutable
+ * snapshot which any number of threads may read without locking, and makes any further attempts
+ * to register or remove objects throw an IllegalStateException.
+ * <br><br>
+ * Every registered object is also given a numeric ID when the registry is frozen.  IDs are handed out
+ * in the order of the object names, starting at 0, so they don't depend on which loader thread got to
+ * register first.  Looking up an object by ID is a simple array access, so systems that need to reference
+ * registered objects often should store the ID rather than the name.  As IDs don't exist before the
+ * freeze, anything that saves IDs should only run after it.
+ * <br><br>
+ * Objects that are expensive to build, or that may never be needed, can be registered by name with
+ * a {@link Supplier} rather than built up-front.  The supplier is called the first time the object is
+ * asked for, or at freeze time if {@link #freeze(boolean)} is told to build all objects.  Either way
+ * it is only called once, and every caller gets the same object.  Names and IDs of these objects are
+ * available without building them.
+ * <br><br>
+ * Registries don't add themselves to the {@link SystemRegistryManager}.  Pass new registries to
+ * {@link SystemRegistryManager#addRegistry(ARegistry)} once they're constructed.
  *
  * @author don_bruce
  */
 public abstract class ARegistry<RegistryObject extends IRegistryObject>{
-	private final Map<String, RegistryObject> registryMap = new HashMap<String, RegistryObject>();
-
-	public ARegistry(){
-		SystemRegistryManager.addRegistry(this);
-	}
+	private final ConcurrentMap<String, RegistryEntry<RegistryObject>> registryMap = new ConcurrentHashMap<String, RegistryEntry<RegistryObject>>();
+	/**Registration holds the read lock so it may run on many threads at once, while freezing holds the write lock.*/
+	private final ReadWriteLock freezeLock = new ReentrantReadWriteLock();
+	/**Snapshot made when this registry is frozen.  Null during bootstrap.*/
+	private volatile FrozenRegistry<RegistryObject> frozenRegistry;
 	
 	/**
 	 * Gets the name for this registry.  This name is used to correlate saved data with the reigstry that
@@ -44,17 +75,35 @@ public abstract class ARegistry<RegistryObject extends IRegistryObject>{
 	protected RegistryObject registerObject(RegistryObject objectToRegister){
 		String objectName = objectToRegister.getName();
 		if(objectName != null){
-			if(!registryMap.containsKey(objectName)){
-				registryMap.put(objectName, objectToRegister);
-				return null;
-			}else{
-				return registryMap.get(objectName);
+			freezeLock.readLock().lock();
+			try{
+				checkNotFrozen();
+				RegistryEntry<RegistryObject> existingEntry = registryMap.putIfAbsent(objectName, new RegistryEntry<RegistryObject>(objectToRegister));
+				return existingEntry != null ? existingEntry.get() : null;
+			}finally{
+				freezeLock.readLock().unlock();
 			}
 		}else{
 			return null;
 		}
 	}
 	
+	/**
+	 * Registers an object that will be built by the passed-in supplier the first time it is needed.
+	 * The object the supplier returns must have the passed-in name.  Like {@link #registerObject(IRegistryObject)},
+	 * if an object with that name is already registered, nothing is registered and that object is returned.
+	 */
+	protected RegistryObject registerSupplier(String objectName, Supplier<? extends RegistryObject> objectSupplier){
+		freezeLock.readLock().lock();
+		try{
+			checkNotFrozen();
+			RegistryEntry<RegistryObject> existingEntry = registryMap.putIfAbsent(objectName, new RegistryEntry<RegistryObject>(objectName, objectSupplier));
+			return existingEntry != null ? existingEntry.get() : null;
+		}finally{
+			freezeLock.readLock().unlock();
+		}
+	}
+	
 	/**
 	 * Removes an object from the registry.  Returns true if the object was removed,
 	 * false if it was not (if it didn't exist in the registry to begin with).
@@ -65,11 +114,12 @@ public abstract class ARegistry<RegistryObject extends IRegistryObject>{
 	 * in-world.  Use this with caution!
 	 */	
 	protected boolean removeObject(String objectID){
-		if(registryMap.containsKey(objectID)){
-			registryMap.remove(objectID);
-			return true;
-		}else{
-			return false;
+		freezeLock.readLock().lock();
+		try{
+			checkNotFrozen();
+			return registryMap.remove(objectID) != null;
+		}finally{
+			freezeLock.readLock().unlock();
 		}
 	}
 	
@@ -80,6 +130,239 @@ public abstract class ARegistry<RegistryObject extends IRegistryObject>{
 	 * un-registred things appearing in the world, which is very bad!
 	 */	
 	protected RegistryObject getObject(String objectID){
-		return registryMap.get(objectID);
+		FrozenRegistry<RegistryObject> frozen = frozenRegistry;
+		if(frozen != null){
+			int id = frozen.getId(objectID);
+			return id != -1 ? frozen.idArray[id].get() : null;
+		}else{
+			RegistryEntry<RegistryObject> entry = registryMap.get(objectID);
+			return entry != null ? entry.get() : null;
+		}
+	}
+	
+	/**
+	 * Gets the object with the passed-in numeric ID, or null if no object has that ID.
+	 * Always null before this registry is frozen.
+	 */
+	public RegistryObject getById(int id){
+		FrozenRegistry<RegistryObject> frozen = frozenRegistry;
+		return frozen != null && id >= 0 && id < frozen.idArray.length ? frozen.idArray[id].get() : null;
+	}
+	
+	/**
+	 * Gets the name of the object with the passed-in numeric ID, or null if no object has that ID.
+	 * Unlike {@link #getById(int)}, this won't build objects registered with a supplier.
+	 */
+	public String getNameById(int id){
+		FrozenRegistry<RegistryObject> frozen = frozenRegistry;
+		return frozen != null && id >= 0 && id < frozen.idArray.length ? frozen.idArray[id].name : null;
+	}
+	
+	/**
+	 * Gets the numeric ID of the passed-in object, or -1 if that object is not registered.
+	 * Always -1 before this registry is frozen.
+	 */
+	public int getId(RegistryObject object){
+		FrozenRegistry<RegistryObject> frozen = frozenRegistry;
+		if(frozen != null){
+			int id = frozen.getId(object.getName());
+			return id != -1 && frozen.idArray[id].object == object ? id : -1;
+		}else{
+			return -1;
+		}
+	}
+	
+	/**
+	 * Gets the numeric ID of the passed-in object for saving.  Unlike {@link #getId(RegistryObject)}, this throws
+	 * rather than returning -1, as a -1 in a save would load back as null and silently lose the object.
+	 */
+	public int getSavedId(RegistryObject object){
+		if(frozenRegistry == null){
+			throw new IllegalStateException("Attempted to save " + object.getName() + " from the " + getType() + " registry before it was frozen!");
+		}
+		int id = getId(object);
+		if(id == -1){
+			throw new IllegalStateException("Attempted to save " + object.getName() + " from the " + getType() + " registry, but it isn't registered!");
+		}
+		return id;
+	}
+	
+	/**
+	 * Returns the number of IDs in this registry.  All IDs are less than this, so it may be used
+	 * to size arrays indexed by ID.  Always 0 before this registry is frozen.
+	 */
+	public int getIdCount(){
+		FrozenRegistry<RegistryObject> frozen = frozenRegistry;
+		return frozen != null ? frozen.idArray.length : 0;
+	}
+	
+	/**
+	 * Freezes this registry.  After this, no objects may be registered or removed, and all lookups
+	 * go through an immutable snapshot that is safe to read from any thread.  IDs are assigned here, sorted
+	 * by name.  This waits for any registrations in progress to finish.  Freezing a registry that is
+	 * already frozen does nothing.  Objects registered with a supplier are left to be built when needed.
+	 */
+	public void freeze(){
+		freeze(false);
+	}
+	
+	/**
+	 * Like {@link #freeze()}, but if buildObjects is true, all objects registered with a supplier
+	 * are built right away, in parallel.  Use this when all objects will be needed anyway, such as
+	 * on clients, to move the cost of building them to startup and spread it across all cores.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public void freeze(boolean buildObjects){
+		freezeLock.writeLock().lock();
+		try{
+			if(frozenRegistry == null){
+				RegistryEntry<RegistryObject>[] idArray = registryMap.values().toArray(new RegistryEntry[0]);
+				Arrays.sort(idArray, Comparator.comparing(entry -> entry.name));
+				frozenRegistry = new FrozenRegistry<RegistryObject>(idArray);
+			}
+		}finally{
+			freezeLock.writeLock().unlock();
+		}
+		if(buildObjects){
+			Arrays.stream(frozenRegistry.idArray).parallel().forEach(RegistryEntry::get);
+		}
+	}
+	
+	/**
+	 * Returns true if this registry supports the registry cache.  Caching is opt-in, so this is false
+	 * by default.  Registries that return true must override {@link #writeCachedObject(IRegistryObject, DataOutputStream)}
+	 * and {@link #readCachedObject(DataInputStream)}.  See {@link systems.SystemRegistryCache}.
+	 */
+	public boolean isCacheable(){
+		return false;
+	}
+	
+	/**
+	 * Writes the name and all properties of the passed-in object to the registry cache, so that
+	 * {@link #readCachedObject(DataInputStream)} can build an identical object from them.  Returns
+	 * false if the object can't be cached, in which case nothing should be written.
+	 */
+	public boolean writeCachedObject(RegistryObject object, DataOutputStream outputStream) throws IOException{
+		return false;
+	}
+	
+	/**
+	 * Builds an object from the data written by {@link #writeCachedObject(IRegistryObject, DataOutputStream)}.
+	 * The object isn't registered here; that is left to {@link #readCachedObjects(DataInputStream, int)}.
+	 */
+	protected RegistryObject readCachedObject(DataInputStream inputStream) throws IOException{
+		throw new IOException("The " + getType() + " registry can't be cached!");
+	}
+	
+	/**
+	 * Reads the passed-in number of objects from the registry cache, and returns an action that registers them.
+	 * Nothing is registered until the action is run, so a cache that turns out to be bad part-way through
+	 * leaves the registry untouched.  Registering skips the public register methods of the registry, as
+	 * cached objects were already checked when they were first registered.
+	 */
+	public Runnable readCachedObjects(DataInputStream inputStream, int objectCount) throws IOException{
+		List<RegistryObject> objects = new ArrayList<RegistryObject>();
+		for(int i=0; i<objectCount; ++i){
+			objects.add(readCachedObject(inputStream));
+		}
+		return () -> {
+			for(RegistryObject object : objects){
+				registerObject(object);
+			}
+		};
+	}
+	
+	/**Returns true if this registry has been frozen.*/
+	public boolean isFrozen(){
+		return frozenRegistry != null;
+	}
+	
+	private void checkNotFrozen(){
+		if(frozenRegistry != null){
+			throw new IllegalStateException("Attempted to modify the " + getType() + " registry after it was frozen!  All registration must be done during bootstrap.");
+		}
+	}
+	
+	/**
+	 * Immutable snapshot of a frozen registry.  Names are looked up in an open-addressing table that
+	 * is never more than half full, which holds the ID of each name in a parallel array.  As nothing in
+	 * here changes after construction, and the snapshot is published through a volatile field, it may
+	 * be read by any thread without locking.
+	 */
+	private static final class FrozenRegistry<RegistryObject extends IRegistryObject>{
+		private final RegistryEntry<RegistryObject>[] idArray;
+		private final String[] tableNames;
+		private final int[] tableIDs;
+		private final int tableMask;
+		
+		private FrozenRegistry(RegistryEntry<RegistryObject>[] idArray){
+			this.idArray = idArray;
+			int tableSize = Integer.highestOneBit(Math.max(idArray.length, 1)*2 - 1)*2;
+			this.tableNames = new String[tableSize];
+			this.tableIDs = new int[tableSize];
+			this.tableMask = tableSize - 1;
+			for(int id=0; id<idArray.length; ++id){
+				String name = idArray[id].name;
+				int slot = getSlot(name);
+				while(tableNames[slot] != null){
+					slot = (slot + 1) & tableMask;
+				}
+				tableNames[slot] = name;
+				tableIDs[slot] = id;
+			}
+		}
+		
+		private int getSlot(String name){
+			int hash = name.hashCode();
+			return (hash ^ (hash >>> 16)) & tableMask;
+		}
+		
+		/**Returns the ID of the object with the passed-in name, or -1 if there is no such object.*/
+		private int getId(String name){
+			for(int slot = getSlot(name); tableNames[slot] != null; slot = (slot + 1) & tableMask){
+				if(tableNames[slot].equals(name)){
+					return tableIDs[slot];
+				}
+			}
+			return -1;
+		}
+	}
+	
+	/**
+	 * A registered object, or the supplier that will build it.  The supplier is called at most once,
+	 * the first time the object is asked for, after which it is dropped so it can be collected.
+	 */
+	private static final class RegistryEntry<RegistryObject extends IRegistryObject>{
+		private final String name;
+		private Supplier<? extends RegistryObject> supplier;
+		private volatile RegistryObject object;
+		
+		private RegistryEntry(RegistryObject object){
+			this.name = object.getName();
+			this.object = object;
+		}
+		
+		private RegistryEntry(String name, Supplier<? extends RegistryObject> supplier){
+			this.name = name;
+			this.supplier = supplier;
+		}
+		
+		private RegistryObject get(){
+			RegistryObject builtObject = object;
+			if(builtObject == null){
+				synchronized(this){
+					builtObject = object;
+					if(builtObject == null){
+						builtObject = supplier.get();
+						if(builtObject == null || !name.equals(builtObject.getName())){
+							throw new IllegalStateException("Supplier registered for " + name + " built " + (builtObject != null ? builtObject.getName() : "null") + " instead!");
+						}
+						object = builtObject;
+						supplier = null;
+					}
+				}
+			}
+			return builtObject;
+		}
 	}
 }
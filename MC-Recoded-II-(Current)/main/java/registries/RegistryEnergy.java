@@ -1,5 +1,10 @@
 package registries;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.function.Supplier;
+
 import components.Energy;
 
 public class RegistryEnergy extends ARegistry<Energy>{
@@ -13,6 +18,10 @@ public class RegistryEnergy extends ARegistry<Energy>{
 		return super.registerObject(energyToRegister);
 	}
 	
+	public Energy registerEnergy(String energyName, Supplier<? extends Energy> energySupplier){
+		return super.registerSupplier(energyName, energySupplier);
+	}
+	
 	public boolean removeEnergy(String energyName){
 		return super.removeObject(energyName);
 	}
@@ -20,4 +29,26 @@ public class RegistryEnergy extends ARegistry<Energy>{
 	public Energy getEnergy(String energyName){
 		return super.getObject(energyName);
 	}
+	
+	@Override
+	public boolean isCacheable(){
+		return true;
+	}
+	
+	@Override
+	public boolean writeCachedObject(Energy energy, DataOutputStream outputStream) throws IOException{
+		//Sub-classes may have properties we don't know about, so only plain energy objects can be cached.
+		if(!energy.getClass().equals(Energy.class)){
+			return false;
+		}
+		outputStream.writeUTF(energy.energyName);
+		outputStream.writeInt(energy.defaultPotency);
+		return true;
+	}
+	
+	@Override
+	protected Energy readCachedObject(DataInputStream inputStream) throws IOException{
+		//Energy doesn't keep its max rate, so there's nothing to pass in for it.
+		return new Energy(inputStream.readUTF(), 0, inputStream.readInt());
+	}
 }
@@ -1,5 +1,10 @@
 package registries;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.function.Supplier;
+
 import components.Fluid;
 
 public class RegistryFluid extends ARegistry<Fluid>{
@@ -13,6 +18,10 @@ public class RegistryFluid extends ARegistry<Fluid>{
 		return super.registerObject(fluidToRegister);
 	}
 	
+	public Fluid registerFluid(String fluidName, Supplier<? extends Fluid> fluidSupplier){
+		return super.registerSupplier(fluidName, fluidSupplier);
+	}
+	
 	public boolean removeFluid(String fluidName){
 		return super.removeObject(fluidName);
 	}
@@ -20,4 +29,29 @@ public class RegistryFluid extends ARegistry<Fluid>{
 	public Fluid getFluid(String fluidName){
 		return super.getObject(fluidName);
 	}
+	
+	@Override
+	public boolean isCacheable(){
+		return true;
+	}
+	
+	@Override
+	public boolean writeCachedObject(Fluid fluid, DataOutputStream outputStream) throws IOException{
+		//Sub-classes may have properties we don't know about, so only plain fluid objects can be cached.
+		if(!fluid.getClass().equals(Fluid.class)){
+			return false;
+		}
+		outputStream.writeUTF(fluid.fluidName);
+		outputStream.writeUTF(fluid.textureLocation);
+		outputStream.writeInt(fluid.defaultTemp);
+		outputStream.writeInt(fluid.defaultEvaporationRate);
+		outputStream.writeFloat(fluid.defaultViscosity);
+		outputStream.writeFloat(fluid.defaultBuoyancy);
+		return true;
+	}
+	
+	@Override
+	protected Fluid readCachedObject(DataInputStream inputStream) throws IOException{
+		return new Fluid(inputStream.readUTF(), inputStream.readUTF(), inputStream.readInt(), inputStream.readInt(), inputStream.readFloat(), inputStream.readFloat());
+	}
 }
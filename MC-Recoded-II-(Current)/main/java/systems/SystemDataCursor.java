@@ -0,0 +1,417 @@
+/**
+ * 
+ */
+package systems;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import registries.ARegistry;
+import registries.IRegistryObject;
+
+/**
+ * This class allows reading saved data one record at a time, rather than loading it all
+ * into the maps of a {@link SystemDataSaveLoad} context first.  This lets objects read values
+ * straight into their variables as the data is parsed, and data that isn't needed can be skipped
+ * without creating any objects for it.  Both the compact and the legacy stream formats may be read.
+ * <br><br>
+ * To use the cursor, call {@link #next()} to move to the next record, check its {@link #type()}
+ * and {@link #name()}, and then either call the matching read method or {@link #skip()}.  If you
+ * do neither, the record is skipped for you when next() is called again.  Sections are read with
+ * {@link #readSection()}, which returns a cursor for the records in the section.  As sections are
+ * saved with their length, skipping them doesn't require parsing them.  For example:
+ * <pre>
+ * while(cursor.next()){
+ *     if(cursor.type() == SystemDataSaveLoad.integerDataCode &amp;&amp; cursor.name().equals("energyLevel")){
+ *         energyLevel = cursor.readInt();
+ *     }
+ * }
+ * </pre>
+ *
+ * @author don_bruce
+ */
+public class SystemDataCursor implements Closeable{
+	private static final int sectionChunkSize = 8192;
+	
+	private final DataInputStream inputStream;
+	private final boolean compactFormat;
+	/**Dictionary of names for compact streams.  Null for legacy streams.*/
+	private final String[] dictionary;
+	/**Single booleans for compact streams.  These come in one block before all other records.*/
+	private final int[] booleanNameIndexes;
+	private final boolean[] booleanValues;
+	private int booleanIndex = -1;
+	
+	private byte currentType = -1;
+	private String currentName;
+	private boolean valuePending;
+	private boolean finished;
+	private SystemDataRegistryMapping registryMapping;
+	
+	/**Creates a cursor for the passed-in stream.  The header of the stream is read right away.*/
+	public SystemDataCursor(DataInputStream inputStream) throws IOException{
+		this.inputStream = inputStream;
+		byte firstCode = inputStream.readByte();
+		this.compactFormat = firstCode == SystemDataSaveLoad.compactFormatCode;
+		if(compactFormat){
+			dictionary = new String[readLength(4, "the dictionary")];
+			for(int i=0; i<dictionary.length; ++i){
+				dictionary[i] = inputStream.readUTF();
+			}
+			booleanNameIndexes = new int[readLength(5, "the booleans")];
+			for(int i=0; i<booleanNameIndexes.length; ++i){
+				booleanNameIndexes[i] = SystemDataSaveLoad.readVarInt(inputStream);
+			}
+			booleanValues = SystemDataSaveLoad.readBitset(inputStream, booleanNameIndexes.length);
+		}else{
+			dictionary = null;
+			booleanNameIndexes = null;
+			booleanValues = null;
+			//Legacy streams don't have a header, so the first code is the first record.
+			currentType = firstCode;
+			finished = firstCode == -1;
+		}
+	}
+	
+	/**Creates a cursor for the records of a section.  Sections share the dictionary of the stream they are in.*/
+	private SystemDataCursor(DataInputStream inputStream, String[] dictionary) throws IOException{
+		this.inputStream = inputStream;
+		this.compactFormat = dictionary != null;
+		this.dictionary = dictionary;
+		if(compactFormat){
+			booleanNameIndexes = new int[readLength(5, "the booleans")];
+			for(int i=0; i<booleanNameIndexes.length; ++i){
+				booleanNameIndexes[i] = SystemDataSaveLoad.readVarInt(inputStream);
+			}
+			booleanValues = SystemDataSaveLoad.readBitset(inputStream, booleanNameIndexes.length);
+		}else{
+			booleanNameIndexes = null;
+			booleanValues = null;
+			currentType = inputStream.readByte();
+			finished = currentType == -1;
+		}
+	}
+	
+	/**Moves to the next record.  If the value of the current record wasn't read, it's skipped.
+	 * Returns false once the end of the data is reached.
+	 */
+	public boolean next() throws IOException{
+		if(finished){
+			return false;
+		}
+		if(valuePending){
+			skip();
+		}
+		try{
+			if(compactFormat){
+				if(booleanIndex + 1 < booleanValues.length){
+					++booleanIndex;
+					currentType = SystemDataSaveLoad.booleanDataCode;
+					currentName = getDictionaryName(booleanNameIndexes[booleanIndex]);
+					valuePending = true;
+					return true;
+				}
+				booleanIndex = booleanValues.length;
+				currentType = inputStream.readByte();
+				if(currentType == -1){
+					finished = true;
+					return false;
+				}else if(currentType == SystemDataSaveLoad.booleanDataCode){
+					//Single booleans only ever come in the block at the start.
+					throw new IOException("Invalid dataCode of " + currentType + " detected when parsing compact data from storage!");
+				}
+				currentName = getDictionaryName(SystemDataSaveLoad.readVarInt(inputStream));
+			}else{
+				//The first legacy code was read by the constructor, so only read the code on later calls.
+				if(currentName != null){
+					currentType = inputStream.readByte();
+					if(currentType == -1){
+						finished = true;
+						return false;
+					}
+				}
+				currentName = inputStream.readUTF();
+			}
+		}catch(EOFException e){
+			throw new IOException("End of inputStream reached, but terminator of -1 was not detected.  Data may be corrupt!");
+		}
+		valuePending = true;
+		return true;
+	}
+	
+	/**Returns the data code of the current record.  These are the codes defined in {@link SystemDataSaveLoad}.*/
+	public byte type(){
+		return currentType;
+	}
+	
+	/**Returns the name of the current record.*/
+	public String name(){
+		return currentName;
+	}
+	
+	public boolean readBoolean() throws IOException{
+		checkRead(SystemDataSaveLoad.booleanDataCode);
+		if(compactFormat){
+			return booleanValues[booleanIndex];
+		}else{
+			return inputStream.readBoolean();
+		}
+	}
+	
+	public int readInt() throws IOException{
+		checkRead(SystemDataSaveLoad.integerDataCode);
+		return compactFormat ? SystemDataSaveLoad.readZigZagVarInt(inputStream) : inputStream.readInt();
+	}
+	
+	public double readDouble() throws IOException{
+		checkRead(SystemDataSaveLoad.doubleDataCode);
+		return compactFormat ? Double.longBitsToDouble(Long.reverse(SystemDataSaveLoad.readVarLong(inputStream))) : inputStream.readDouble();
+	}
+	
+	public String readString() throws IOException{
+		checkRead(SystemDataSaveLoad.stringDataCode);
+		return inputStream.readUTF();
+	}
+	
+	public long readLong() throws IOException{
+		checkRead(SystemDataSaveLoad.longDataCode);
+		return compactFormat ? SystemDataSaveLoad.readZigZagVarLong(inputStream) : inputStream.readLong();
+	}
+	
+	public boolean[] readBooleanArray() throws IOException{
+		checkRead(SystemDataSaveLoad.booleanArrayDataCode);
+		int arrayLength = readArrayLength(2);
+		if(compactFormat){
+			return SystemDataSaveLoad.readBitset(inputStream, arrayLength);
+		}else{
+			byte[] rawData = new byte[arrayLength];
+			inputStream.readFully(rawData);
+			boolean[] booleanArray = new boolean[arrayLength];
+			for(int i=0; i<arrayLength; ++i){
+				booleanArray[i] = rawData[i] != 0;
+			}
+			return booleanArray;
+		}
+	}
+	
+	public int[] readIntArray() throws IOException{
+		checkRead(SystemDataSaveLoad.integerArrayDataCode);
+		int[] integerArray = new int[readArrayLength(Integer.BYTES)];
+		if(compactFormat){
+			for(int i=0; i<integerArray.length; ++i){
+				integerArray[i] = SystemDataSaveLoad.readZigZagVarInt(inputStream);
+			}
+		}else{
+			SystemDataSaveLoad.readBulkData(inputStream, integerArray.length*Integer.BYTES).asIntBuffer().get(integerArray);
+		}
+		return integerArray;
+	}
+	
+	public double[] readDoubleArray() throws IOException{
+		checkRead(SystemDataSaveLoad.doubleArrayDataCode);
+		double[] doubleArray = new double[readArrayLength(Double.BYTES)];
+		SystemDataSaveLoad.readBulkData(inputStream, doubleArray.length*Double.BYTES).asDoubleBuffer().get(doubleArray);
+		return doubleArray;
+	}
+	
+	public String[] readStringArray() throws IOException{
+		checkRead(SystemDataSaveLoad.stringArrayDataCode);
+		String[] stringArray = new String[readArrayLength(4)];
+		for(int i=0; i<stringArray.length; ++i){
+			stringArray[i] = inputStream.readUTF();
+		}
+		return stringArray;
+	}
+	
+	/**Returns a cursor for the records in the current section.  The section is read into memory as
+	 * a block, so the returned cursor doesn't need to be read to the end before calling next() on this one.
+	 */
+	public SystemDataCursor readSection() throws IOException{
+		checkRead(SystemDataSaveLoad.sectionDataCode);
+		//Sections have no max size, so read them in chunks rather than trusting the length with one big array.
+		//This way a corrupt length runs out of data rather than memory.
+		int sectionLength = readSectionLength();
+		ByteArrayOutputStream sectionBytes = new ByteArrayOutputStream(Math.min(sectionLength, sectionChunkSize));
+		byte[] chunk = new byte[sectionChunkSize];
+		for(int bytesLeft = sectionLength; bytesLeft > 0;){
+			int bytesRead = inputStream.read(chunk, 0, Math.min(bytesLeft, chunk.length));
+			if(bytesRead == -1){
+				throw new IOException("End of inputStream reached in the middle of section " + currentName + ".  Data may be corrupt!");
+			}
+			sectionBytes.write(chunk, 0, bytesRead);
+			bytesLeft -= bytesRead;
+		}
+		SystemDataCursor sectionCursor = new SystemDataCursor(new DataInputStream(new ByteArrayInputStream(sectionBytes.toByteArray())), dictionary);
+		sectionCursor.registryMapping = registryMapping;
+		return sectionCursor;
+	}
+	
+	/**Skips the value of the current record without decoding it.*/
+	public void skip() throws IOException{
+		if(!valuePending){
+			return;
+		}
+		valuePending = false;
+		switch(currentType){
+			case SystemDataSaveLoad.booleanDataCode:{
+				if(!compactFormat){
+					skipFully(1);
+				}
+				break;
+			}
+			case SystemDataSaveLoad.integerDataCode:{
+				if(compactFormat){
+					SystemDataSaveLoad.readVarInt(inputStream);
+				}else{
+					skipFully(Integer.BYTES);
+				}
+				break;
+			}
+			case SystemDataSaveLoad.doubleDataCode:{
+				if(compactFormat){
+					SystemDataSaveLoad.readVarLong(inputStream);
+				}else{
+					skipFully(Double.BYTES);
+				}
+				break;
+			}
+			case SystemDataSaveLoad.stringDataCode:{
+				skipFully(inputStream.readUnsignedShort());
+				break;
+			}
+			case SystemDataSaveLoad.sectionDataCode:{
+				skipFully(readSectionLength());
+				break;
+			}
+			case SystemDataSaveLoad.longDataCode:{
+				if(compactFormat){
+					SystemDataSaveLoad.readVarLong(inputStream);
+				}else{
+					skipFully(Long.BYTES);
+				}
+				break;
+			}
+			case SystemDataSaveLoad.booleanArrayDataCode:{
+				int arrayLength = readArrayLength(2);
+				skipFully(compactFormat ? (arrayLength + 7)/8 : arrayLength);
+				break;
+			}
+			case SystemDataSaveLoad.integerArrayDataCode:{
+				int arrayLength = readArrayLength(Integer.BYTES);
+				if(compactFormat){
+					for(int i=0; i<arrayLength; ++i){
+						SystemDataSaveLoad.readVarInt(inputStream);
+					}
+				}else{
+					skipFully((long) arrayLength*Integer.BYTES);
+				}
+				break;
+			}
+			case SystemDataSaveLoad.doubleArrayDataCode:{
+				skipFully((long) readArrayLength(Double.BYTES)*Double.BYTES);
+				break;
+			}
+			case SystemDataSaveLoad.stringArrayDataCode:{
+				int arrayLength = readArrayLength(4);
+				for(int i=0; i<arrayLength; ++i){
+					skipFully(inputStream.readUnsignedShort());
+				}
+				break;
+			}
+			default: throw new IOException("Invalid dataCode of " + currentType + " detected when parsing data from storage!");
+		}
+	}
+	
+	/**Sets the mapping used to look up registered objects by their saved IDs.  Section cursors made after this share the mapping.*/
+	public void setRegistryMapping(SystemDataRegistryMapping registryMapping){
+		this.registryMapping = registryMapping;
+	}
+	
+	public SystemDataRegistryMapping getRegistryMapping(){
+		return registryMapping;
+	}
+	
+	/**Returns the object in the passed-in registry for the passed-in saved ID, or null if there is no such object.*/
+	public <RegistryObject extends IRegistryObject> RegistryObject getRegistryObject(ARegistry<RegistryObject> registry, int savedID){
+		return registryMapping != null ? registryMapping.getObject(registry, savedID) : registry.getById(savedID);
+	}
+	
+	/**Reads all records from the current position to the end of the data into the passed-in context.
+	 * This is handy for objects that only want to read some data directly and leave the rest to the maps.
+	 */
+	public void readRemaining(SystemDataSaveLoad data) throws IOException{
+		while(next()){
+			switch(currentType){
+				case SystemDataSaveLoad.booleanDataCode: data.booleanMap.put(currentName, readBoolean()); break;
+				case SystemDataSaveLoad.integerDataCode: data.integerMap.put(currentName, readInt()); break;
+				case SystemDataSaveLoad.doubleDataCode: data.doubleMap.put(currentName, readDouble()); break;
+				case SystemDataSaveLoad.stringDataCode: data.stringMap.put(currentName, readString()); break;
+				case SystemDataSaveLoad.longDataCode: data.longMap.put(currentName, readLong()); break;
+				case SystemDataSaveLoad.booleanArrayDataCode: data.booleanArrayMap.put(currentName, readBooleanArray()); break;
+				case SystemDataSaveLoad.integerArrayDataCode: data.integerArrayMap.put(currentName, readIntArray()); break;
+				case SystemDataSaveLoad.doubleArrayDataCode: data.doubleArrayMap.put(currentName, readDoubleArray()); break;
+				case SystemDataSaveLoad.stringArrayDataCode: data.stringArrayMap.put(currentName, readStringArray()); break;
+				case SystemDataSaveLoad.sectionDataCode: readSection().readRemaining(data.getSection(currentName)); break;
+				default: throw new IOException("Invalid dataCode of " + currentType + " detected when parsing data from storage!");
+			}
+		}
+	}
+	
+	@Override
+	public void close() throws IOException{
+		inputStream.close();
+	}
+	
+	private void checkRead(byte dataCode){
+		if(!valuePending){
+			throw new IllegalStateException("Attempted to read the value of " + currentName + " twice, or before calling next()!");
+		}else if(currentType != dataCode){
+			throw new IllegalStateException("Attempted to read " + currentName + " as dataCode " + dataCode + ", but it is dataCode " + currentType + "!");
+		}
+		valuePending = false;
+	}
+	
+	/**Reads the length of an array with elements that need the passed-in number of bytes in memory.*/
+	private int readArrayLength(int elementBytes) throws IOException{
+		return readLength(elementBytes, currentName);
+	}
+	
+	private int readSectionLength() throws IOException{
+		int sectionLength = compactFormat ? SystemDataSaveLoad.readVarInt(inputStream) : inputStream.readInt();
+		if(sectionLength < 0){
+			throw new IOException("Invalid section length of " + sectionLength + " detected when parsing " + currentName + " from storage!");
+		}
+		return sectionLength;
+	}
+	
+	/**Reads a length, and checks it with {@link SystemDataSaveLoad#checkLength(int, long, String)} so corrupt
+	 * data throws an IOException rather than making a negative or huge array.
+	 */
+	private int readLength(int elementBytes, String dataName) throws IOException{
+		int length = compactFormat ? SystemDataSaveLoad.readVarInt(inputStream) : inputStream.readInt();
+		return SystemDataSaveLoad.checkLength(length, (long) length*elementBytes, dataName);
+	}
+	
+	private String getDictionaryName(int nameIndex) throws IOException{
+		if(nameIndex < 0 || nameIndex >= dictionary.length){
+			throw new IOException("Invalid name index of " + nameIndex + " detected when parsing compact data from storage!");
+		}
+		return dictionary[nameIndex];
+	}
+	
+	private void skipFully(long numberBytes) throws IOException{
+		while(numberBytes > 0){
+			int skippedBytes = inputStream.skipBytes((int) Math.min(numberBytes, Integer.MAX_VALUE));
+			if(skippedBytes <= 0){
+				//skipBytes may stop short without hitting the end, so check with a read.
+				inputStream.readByte();
+				skippedBytes = 1;
+			}
+			numberBytes -= skippedBytes;
+		}
+	}
+}
@@ -0,0 +1,423 @@
+/**
+ * 
+ */
+package systems;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * This class is an alternate file layout for the data in a {@link SystemDataSaveLoad} context.
+ * Rather than a sequential stream of records, the file starts with an index of every
+ * data name and the offset of its value.  The file is then memory-mapped when opened,
+ * and only the index is parsed.  This allows a single value to be read from a large
+ * file without decoding all the data before it, which is handy for things like admin
+ * queries or start-up checks that only care about one or two values.
+ * <br><br>
+ * The file layout is as follows: a 4-byte magic number, a 4-byte format version,
+ * a 4-byte entry count, and then the index.  Each index entry is a byte for the
+ * data code (same codes as {@link SystemDataSaveLoad}), a 2-byte name length, the
+ * UTF-8 name bytes, and a 4-byte absolute offset to the value.  Values follow the index.
+ * Strings are stored as a 4-byte length followed by UTF-8 bytes, and arrays are stored as
+ * a 4-byte element count followed by the elements.  Sections are flattened into the index,
+ * with the section names and the data name joined by {@link #sectionSeparator}, so the energy level
+ * of an energy container would be found under "ENERGY_CONTAINER/energyLevel".  Because of this,
+ * names saved in this format should not contain the separator themselves.
+ * <br><br>
+ * The index and the extent of every value are checked when the file is opened, so corrupt files throw an
+ * IOException there rather than the getters reading past the end of the file.
+ * <br><br>
+ * Once opened, an instance of this class may be read from any number of threads at once,
+ * as all reads are done with absolute positions on the mapped buffer.  Note that mapped
+ * files are limited to 2GB, and that the mapping is released by the garbage collector
+ * rather than when the file is closed.
+ *
+ * @author don_bruce
+ */
+public class SystemDataIndexedFile{
+	protected static final int fileMagic = 0x4D435249;
+	protected static final int fileVersion = 1;
+	public static final char sectionSeparator = '/';
+	
+	private final ByteBuffer buffer;
+	/**Map of data name to offsets.  Offset arrays are indexed by data code, with -1 meaning no data of that type.*/
+	private final Map<String, int[]> index;
+	
+	private SystemDataIndexedFile(ByteBuffer buffer, Map<String, int[]> index){
+		this.buffer = buffer;
+		this.index = index;
+	}
+	
+	/**Opens the passed-in file and parses its index.  No data values are decoded until they are requested.*/
+	public static SystemDataIndexedFile open(Path file) throws IOException{
+		MappedByteBuffer buffer;
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+			if(channel.size() > Integer.MAX_VALUE){
+				throw new IOException("Indexed data file " + file + " is larger than 2GB and cannot be mapped!");
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		
+		if(buffer.limit() < 12 || buffer.getInt(0) != fileMagic){
+			throw new IOException("File " + file + " is not an indexed data file!");
+		}
+		int version = buffer.getInt(4);
+		if(version != fileVersion){
+			throw new IOException("Unsupported indexed data file version of " + version + " in " + file + "!");
+		}
+		
+		//Parse the index.  This is the only part of the file that's read up-front.
+		//Each entry is at least a data code, a name length, and an offset, so the file must have room for that many.
+		int entryCount = buffer.getInt(8);
+		if(entryCount < 0 || entryCount*7L > buffer.limit() - 12){
+			throw new IOException("Invalid entry count of " + entryCount + " detected in " + file + ".  Data may be corrupt!");
+		}
+		Map<String, int[]> index = new HashMap<String, int[]>(entryCount*2);
+		ByteBuffer indexBuffer = buffer.duplicate();
+		indexBuffer.position(12);
+		for(int i=0; i<entryCount; ++i){
+			if(indexBuffer.remaining() < 3){
+				throw new IOException("Truncated index detected in " + file + ".  Data may be corrupt!");
+			}
+			byte dataCode = indexBuffer.get();
+			int nameLength = indexBuffer.getShort() & 0xFFFF;
+			if(indexBuffer.remaining() < nameLength + 4){
+				throw new IOException("Truncated index detected in " + file + ".  Data may be corrupt!");
+			}
+			byte[] nameBytes = new byte[nameLength];
+			indexBuffer.get(nameBytes);
+			int offset = indexBuffer.getInt();
+			if(dataCode < 0 || dataCode > SystemDataSaveLoad.stringArrayDataCode || offset < 0 || !isValueInFile(buffer, dataCode, offset)){
+				throw new IOException("Invalid index entry detected in " + file + ".  Data may be corrupt!");
+			}
+			String dataName = new String(nameBytes, StandardCharsets.UTF_8);
+			int[] offsets = index.get(dataName);
+			if(offsets == null){
+				offsets = new int[SystemDataSaveLoad.stringArrayDataCode + 1];
+				Arrays.fill(offsets, -1);
+				index.put(dataName, offsets);
+			}
+			offsets[dataCode] = offset;
+		}
+		return new SystemDataIndexedFile(buffer, index);
+	}
+	
+	/**Returns true if the whole value of the passed-in type at the passed-in offset lies within the file.
+	 * This is checked for every entry when the file is opened, so the getters never need to check lengths themselves.
+	 */
+	private static boolean isValueInFile(ByteBuffer buffer, byte dataCode, int offset){
+		long limit = buffer.limit();
+		switch(dataCode){
+			case SystemDataSaveLoad.booleanDataCode: return offset + 1L <= limit;
+			case SystemDataSaveLoad.integerDataCode: return offset + (long) Integer.BYTES <= limit;
+			case SystemDataSaveLoad.doubleDataCode: return offset + (long) Double.BYTES <= limit;
+			case SystemDataSaveLoad.longDataCode: return offset + (long) Long.BYTES <= limit;
+			case SystemDataSaveLoad.stringDataCode:
+			case SystemDataSaveLoad.booleanArrayDataCode: return offset + 4L <= limit && buffer.getInt(offset) >= 0 && offset + 4L + buffer.getInt(offset) <= limit;
+			case SystemDataSaveLoad.integerArrayDataCode: return offset + 4L <= limit && buffer.getInt(offset) >= 0 && offset + 4L + buffer.getInt(offset)*(long) Integer.BYTES <= limit;
+			case SystemDataSaveLoad.doubleArrayDataCode: return offset + 4L <= limit && buffer.getInt(offset) >= 0 && offset + 4L + buffer.getInt(offset)*(long) Double.BYTES <= limit;
+			case SystemDataSaveLoad.stringArrayDataCode:{
+				//Every string has a 4-byte length, so check the count against that before walking them.
+				if(offset + 4L > limit || buffer.getInt(offset) < 0 || offset + 4L + buffer.getInt(offset)*4L > limit){
+					return false;
+				}
+				long stringOffset = offset + 4L;
+				for(int i=buffer.getInt(offset); i>0; --i){
+					if(stringOffset + 4 > limit || buffer.getInt((int) stringOffset) < 0){
+						return false;
+					}
+					stringOffset += 4L + buffer.getInt((int) stringOffset);
+				}
+				return stringOffset <= limit;
+			}
+			default: return false;
+		}
+	}
+	
+	/**Returns the offset for the passed-in data, or -1 if the data isn't in this file.*/
+	protected int getOffset(byte dataCode, String dataName){
+		int[] offsets = index.get(dataName);
+		return offsets != null ? offsets[dataCode] : -1;
+	}
+	
+	/**Returns true if this file contains data of the passed-in type and name.*/
+	public boolean hasData(byte dataCode, String dataName){
+		return getOffset(dataCode, dataName) != -1;
+	}
+	
+	public boolean getBoolean(String dataName, boolean defaultValue){
+		int offset = getOffset(SystemDataSaveLoad.booleanDataCode, dataName);
+		return offset != -1 ? buffer.get(offset) != 0 : defaultValue;
+	}
+	
+	public int getInteger(String dataName, int defaultValue){
+		int offset = getOffset(SystemDataSaveLoad.integerDataCode, dataName);
+		return offset != -1 ? buffer.getInt(offset) : defaultValue;
+	}
+	
+	public double getDouble(String dataName, double defaultValue){
+		int offset = getOffset(SystemDataSaveLoad.doubleDataCode, dataName);
+		return offset != -1 ? buffer.getDouble(offset) : defaultValue;
+	}
+	
+	public long getLong(String dataName, long defaultValue){
+		int offset = getOffset(SystemDataSaveLoad.longDataCode, dataName);
+		return offset != -1 ? buffer.getLong(offset) : defaultValue;
+	}
+	
+	/**Returns the string with the passed-in name, or null if it isn't in this file.*/
+	public String getString(String dataName){
+		int offset = getOffset(SystemDataSaveLoad.stringDataCode, dataName);
+		return offset != -1 ? readString(buffer.duplicate(), offset) : null;
+	}
+	
+	/**Returns the array with the passed-in name, or null if it isn't in this file.*/
+	public boolean[] getBooleanArray(String dataName){
+		int offset = getOffset(SystemDataSaveLoad.booleanArrayDataCode, dataName);
+		if(offset != -1){
+			boolean[] booleanArray = new boolean[buffer.getInt(offset)];
+			for(int i=0; i<booleanArray.length; ++i){
+				booleanArray[i] = buffer.get(offset + 4 + i) != 0;
+			}
+			return booleanArray;
+		}else{
+			return null;
+		}
+	}
+	
+	/**Returns the array with the passed-in name, or null if it isn't in this file.*/
+	public int[] getIntegerArray(String dataName){
+		int offset = getOffset(SystemDataSaveLoad.integerArrayDataCode, dataName);
+		if(offset != -1){
+			int[] integerArray = new int[buffer.getInt(offset)];
+			ByteBuffer arrayBuffer = buffer.duplicate();
+			arrayBuffer.position(offset + 4);
+			arrayBuffer.asIntBuffer().get(integerArray);
+			return integerArray;
+		}else{
+			return null;
+		}
+	}
+	
+	/**Returns the array with the passed-in name, or null if it isn't in this file.*/
+	public double[] getDoubleArray(String dataName){
+		int offset = getOffset(SystemDataSaveLoad.doubleArrayDataCode, dataName);
+		if(offset != -1){
+			double[] doubleArray = new double[buffer.getInt(offset)];
+			ByteBuffer arrayBuffer = buffer.duplicate();
+			arrayBuffer.position(offset + 4);
+			arrayBuffer.asDoubleBuffer().get(doubleArray);
+			return doubleArray;
+		}else{
+			return null;
+		}
+	}
+	
+	/**Returns the array with the passed-in name, or null if it isn't in this file.*/
+	public String[] getStringArray(String dataName){
+		int offset = getOffset(SystemDataSaveLoad.stringArrayDataCode, dataName);
+		if(offset != -1){
+			ByteBuffer arrayBuffer = buffer.duplicate();
+			String[] stringArray = new String[buffer.getInt(offset)];
+			arrayBuffer.position(offset + 4);
+			for(int i=0; i<stringArray.length; ++i){
+				stringArray[i] = readString(arrayBuffer, arrayBuffer.position());
+			}
+			return stringArray;
+		}else{
+			return null;
+		}
+	}
+	
+	/**Copies all data in this file into the passed-in context.  Use this if you need everything anyways.
+	 * Flattened section names are split back up into sections.
+	 */
+	public void loadAll(SystemDataSaveLoad rootData){
+		for(Entry<String, int[]> indexEntry : index.entrySet()){
+			String fullName = indexEntry.getKey();
+			int[] offsets = indexEntry.getValue();
+			SystemDataSaveLoad data = rootData;
+			int sectionStart = 0;
+			for(int sectionEnd = fullName.indexOf(sectionSeparator); sectionEnd != -1; sectionEnd = fullName.indexOf(sectionSeparator, sectionStart)){
+				data = data.getSection(fullName.substring(sectionStart, sectionEnd));
+				sectionStart = sectionEnd + 1;
+			}
+			String dataName = fullName.substring(sectionStart);
+			if(offsets[SystemDataSaveLoad.booleanDataCode] != -1){
+				data.booleanMap.put(dataName, getBoolean(fullName, false));
+			}
+			if(offsets[SystemDataSaveLoad.integerDataCode] != -1){
+				data.integerMap.put(dataName, getInteger(fullName, 0));
+			}
+			if(offsets[SystemDataSaveLoad.doubleDataCode] != -1){
+				data.doubleMap.put(dataName, getDouble(fullName, 0));
+			}
+			if(offsets[SystemDataSaveLoad.stringDataCode] != -1){
+				data.stringMap.put(dataName, getString(fullName));
+			}
+			if(offsets[SystemDataSaveLoad.longDataCode] != -1){
+				data.longMap.put(dataName, getLong(fullName, 0));
+			}
+			if(offsets[SystemDataSaveLoad.booleanArrayDataCode] != -1){
+				data.booleanArrayMap.put(dataName, getBooleanArray(fullName));
+			}
+			if(offsets[SystemDataSaveLoad.integerArrayDataCode] != -1){
+				data.integerArrayMap.put(dataName, getIntegerArray(fullName));
+			}
+			if(offsets[SystemDataSaveLoad.doubleArrayDataCode] != -1){
+				data.doubleArrayMap.put(dataName, getDoubleArray(fullName));
+			}
+			if(offsets[SystemDataSaveLoad.stringArrayDataCode] != -1){
+				data.stringArrayMap.put(dataName, getStringArray(fullName));
+			}
+		}
+	}
+	
+	/**Reads a length-prefixed UTF-8 string at the passed-in offset, leaving the buffer positioned after it.*/
+	private static String readString(ByteBuffer stringBuffer, int offset){
+		byte[] stringBytes = new byte[stringBuffer.getInt(offset)];
+		stringBuffer.position(offset + 4);
+		stringBuffer.get(stringBytes);
+		return new String(stringBytes, StandardCharsets.UTF_8);
+	}
+	
+	/**Writes all data in the passed-in context to the passed-in file in the indexed format.
+	 * Unlike {@link SystemDataSaveLoad#saveDataToStream(DataOutputStream)}, this does not
+	 * clear the context, so it may be used to write the same data elsewhere afterwards.
+	 */
+	public static void writeFile(SystemDataSaveLoad data, Path file) throws IOException{
+		try(OutputStream fileStream = Files.newOutputStream(file)){
+			writeData(data, fileStream);
+		}
+	}
+	
+	/**Writes all data in the passed-in context to the passed-in stream in the indexed format.*/
+	public static void writeData(SystemDataSaveLoad data, OutputStream outputStream) throws IOException{
+		//Values are written to a separate buffer first, as we need to know the size of the
+		//index before we can compute the absolute offsets of the values that follow it.
+		ByteArrayOutputStream valueBytes = new ByteArrayOutputStream();
+		DataOutputStream valueStream = new DataOutputStream(valueBytes);
+		ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+		DataOutputStream indexStream = new DataOutputStream(indexBytes);
+		int entryCount = writeEntries(data, "", indexStream, valueStream);
+		
+		//Now that we know how big the index is, shift all the value offsets to be absolute.
+		int headerSize = 12 + indexBytes.size();
+		ByteBuffer indexBuffer = ByteBuffer.wrap(indexBytes.toByteArray());
+		while(indexBuffer.hasRemaining()){
+			indexBuffer.get();
+			int nameLength = indexBuffer.getShort() & 0xFFFF;
+			indexBuffer.position(indexBuffer.position() + nameLength);
+			indexBuffer.putInt(indexBuffer.position(), indexBuffer.getInt(indexBuffer.position()) + headerSize);
+			indexBuffer.position(indexBuffer.position() + 4);
+		}
+		
+		DataOutputStream fileStream = new DataOutputStream(outputStream);
+		fileStream.writeInt(fileMagic);
+		fileStream.writeInt(fileVersion);
+		fileStream.writeInt(entryCount);
+		fileStream.write(indexBuffer.array());
+		valueBytes.writeTo(fileStream);
+		fileStream.flush();
+	}
+	
+	/**Writes the index entries and values for the passed-in context and all its sections.  Returns the number of entries written.*/
+	private static int writeEntries(SystemDataSaveLoad data, String prefix, DataOutputStream indexStream, DataOutputStream valueStream) throws IOException{
+		int entryCount = 0;
+		for(Entry<String, Boolean> booleanMapEntry : data.booleanMap.entrySet()){
+			writeIndexEntry(indexStream, SystemDataSaveLoad.booleanDataCode, prefix + booleanMapEntry.getKey(), valueStream.size());
+			valueStream.writeBoolean(booleanMapEntry.getValue());
+			++entryCount;
+		}
+		for(Entry<String, Integer> integerMapEntry : data.integerMap.entrySet()){
+			writeIndexEntry(indexStream, SystemDataSaveLoad.integerDataCode, prefix + integerMapEntry.getKey(), valueStream.size());
+			valueStream.writeInt(integerMapEntry.getValue());
+			++entryCount;
+		}
+		for(Entry<String, Double> doubleMapEntry : data.doubleMap.entrySet()){
+			writeIndexEntry(indexStream, SystemDataSaveLoad.doubleDataCode, prefix + doubleMapEntry.getKey(), valueStream.size());
+			valueStream.writeDouble(doubleMapEntry.getValue());
+			++entryCount;
+		}
+		for(Entry<String, String> stringMapEntry : data.stringMap.entrySet()){
+			writeIndexEntry(indexStream, SystemDataSaveLoad.stringDataCode, prefix + stringMapEntry.getKey(), valueStream.size());
+			writeString(valueStream, stringMapEntry.getValue());
+			++entryCount;
+		}
+		for(Entry<String, Long> longMapEntry : data.longMap.entrySet()){
+			writeIndexEntry(indexStream, SystemDataSaveLoad.longDataCode, prefix + longMapEntry.getKey(), valueStream.size());
+			valueStream.writeLong(longMapEntry.getValue());
+			++entryCount;
+		}
+		for(Entry<String, boolean[]> booleanArrayMapEntry : data.booleanArrayMap.entrySet()){
+			boolean[] booleanArray = booleanArrayMapEntry.getValue();
+			writeIndexEntry(indexStream, SystemDataSaveLoad.booleanArrayDataCode, prefix + booleanArrayMapEntry.getKey(), valueStream.size());
+			valueStream.writeInt(booleanArray.length);
+			for(boolean value : booleanArray){
+				valueStream.writeBoolean(value);
+			}
+			++entryCount;
+		}
+		for(Entry<String, int[]> integerArrayMapEntry : data.integerArrayMap.entrySet()){
+			int[] integerArray = integerArrayMapEntry.getValue();
+			writeIndexEntry(indexStream, SystemDataSaveLoad.integerArrayDataCode, prefix + integerArrayMapEntry.getKey(), valueStream.size());
+			valueStream.writeInt(integerArray.length);
+			ByteBuffer rawData = ByteBuffer.allocate(integerArray.length*Integer.BYTES);
+			rawData.asIntBuffer().put(integerArray);
+			valueStream.write(rawData.array());
+			++entryCount;
+		}
+		for(Entry<String, double[]> doubleArrayMapEntry : data.doubleArrayMap.entrySet()){
+			double[] doubleArray = doubleArrayMapEntry.getValue();
+			writeIndexEntry(indexStream, SystemDataSaveLoad.doubleArrayDataCode, prefix + doubleArrayMapEntry.getKey(), valueStream.size());
+			valueStream.writeInt(doubleArray.length);
+			ByteBuffer rawData = ByteBuffer.allocate(doubleArray.length*Double.BYTES);
+			rawData.asDoubleBuffer().put(doubleArray);
+			valueStream.write(rawData.array());
+			++entryCount;
+		}
+		for(Entry<String, String[]> stringArrayMapEntry : data.stringArrayMap.entrySet()){
+			String[] stringArray = stringArrayMapEntry.getValue();
+			writeIndexEntry(indexStream, SystemDataSaveLoad.stringArrayDataCode, prefix + stringArrayMapEntry.getKey(), valueStream.size());
+			valueStream.writeInt(stringArray.length);
+			for(String value : stringArray){
+				writeString(valueStream, value);
+			}
+			++entryCount;
+		}
+		for(Entry<String, SystemDataSaveLoad> sectionMapEntry : data.sectionMap.entrySet()){
+			entryCount += writeEntries(sectionMapEntry.getValue(), prefix + sectionMapEntry.getKey() + sectionSeparator, indexStream, valueStream);
+		}
+		return entryCount;
+	}
+	
+	private static void writeIndexEntry(DataOutputStream indexStream, byte dataCode, String dataName, int relativeOffset) throws IOException{
+		byte[] nameBytes = dataName.getBytes(StandardCharsets.UTF_8);
+		if(nameBytes.length > 0xFFFF){
+			throw new IOException("Data name " + dataName + " is too long to be saved!");
+		}
+		indexStream.writeByte(dataCode);
+		indexStream.writeShort(nameBytes.length);
+		indexStream.write(nameBytes);
+		indexStream.writeInt(relativeOffset);
+	}
+	
+	private static void writeString(DataOutputStream valueStream, String value) throws IOException{
+		byte[] stringBytes = value.getBytes(StandardCharsets.UTF_8);
+		valueStream.writeInt(stringBytes.length);
+		valueStream.write(stringBytes);
+	}
+}
@@ -0,0 +1,331 @@
+/**
+ * 
+ */
+package systems;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * This class saves data incrementally.  Rather than re-writing all data every save, only
+ * the data that changed since the last save is appended to a journal file next to the base
+ * file.  Changes are found per data name by comparing against the state that was last written,
+ * so callers just fill in a {@link SystemDataSaveLoad} context like normal and let this class
+ * work out what is dirty.  Sections are tracked as a whole, so if anything in a section changes the
+ * entire section is saved again.  Once the journal grows past the compaction threshold, a background
+ * thread folds it into a new base file and starts a fresh journal.
+ * <br><br>
+ * Each journal entry is a 4-byte payload length, a 4-byte CRC32 of the payload, and the payload.
+ * The payload is a varint count of removed data, a data code and name for each removed piece of
+ * data, and then the changed data in the compact format of {@link SystemDataSaveLoad}.
+ * When loading, the base file is read and then all journal entries are replayed in order.
+ * Should the game crash mid-append, the torn entry fails its CRC check and is discarded.
+ * <br><br>
+ * All methods on this class are synchronized, so a journal may be shared between threads,
+ * though it's expected that one thread does the saving.
+ *
+ * @author don_bruce
+ */
+public class SystemDataJournal implements Closeable{
+	private static final byte[] dataCodes = new byte[]{
+		SystemDataSaveLoad.booleanDataCode, SystemDataSaveLoad.integerDataCode, SystemDataSaveLoad.doubleDataCode, SystemDataSaveLoad.stringDataCode, SystemDataSaveLoad.longDataCode,
+		SystemDataSaveLoad.booleanArrayDataCode, SystemDataSaveLoad.integerArrayDataCode, SystemDataSaveLoad.doubleArrayDataCode, SystemDataSaveLoad.stringArrayDataCode,
+		SystemDataSaveLoad.sectionDataCode
+	};
+	
+	private final Path baseFile;
+	private final Path journalFile;
+	/**Journal that is being folded into the base file by the compactor.  Only exists during compaction, or after a crash during it.*/
+	private final Path compactingJournalFile;
+	private final long compactionThreshold;
+	/**State of the data as it exists on disk, base file plus journal.  Used to find what changed.*/
+	private final SystemDataSaveLoad savedData = new SystemDataSaveLoad();
+	private final ExecutorService compactor;
+	
+	/**Open journal file.  Null before loading, after closing, or if re-opening it after a compaction failed, in which case the next save tries again.*/
+	private FileChannel journalChannel;
+	private boolean loaded;
+	private Future<?> pendingCompaction;
+	
+	/**Creates a journal for the passed-in base file.  The journal file lives next to it with a .journal extension.
+	 * Once the journal is larger than the threshold in bytes, it will be compacted into the base file.
+	 */
+	public SystemDataJournal(Path baseFile, long compactionThreshold){
+		this.baseFile = baseFile;
+		this.journalFile = Paths.get(baseFile.toString() + ".journal");
+		this.compactingJournalFile = Paths.get(baseFile.toString() + ".journal.old");
+		this.compactionThreshold = compactionThreshold;
+		this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread compactorThread = new Thread(runnable, "Journal Compactor");
+			compactorThread.setDaemon(true);
+			return compactorThread;
+		});
+	}
+	
+	/**Loads the base file and replays the journal into the passed-in context.  This must be called before
+	 * the first save, even if no files exist yet, as it sets up what the journal considers saved.
+	 */
+	public synchronized void loadData(SystemDataSaveLoad data) throws IOException{
+		waitForCompaction();
+		if(Files.exists(baseFile)){
+			data.loadDataFromStream(new DataInputStream(Files.newInputStream(baseFile)));
+		}else{
+			data.clearMaps();
+		}
+		//If we crashed mid-compaction the old journal may still be here.
+		//Replaying it is safe even if it was already folded into the base, as it will end in the same state.
+		if(Files.exists(compactingJournalFile)){
+			replayJournal(compactingJournalFile, data, false);
+		}
+		replayJournal(journalFile, data, true);
+		
+		savedData.clearMaps();
+		savedData.copyDataFrom(data);
+		if(journalChannel == null){
+			journalChannel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+		loaded = true;
+	}
+	
+	/**Saves any data in the passed-in context that differs from what was last saved.  Data that was
+	 * saved before but is no longer in the context is recorded as removed.  Unlike saving to a stream,
+	 * the context is not cleared.  Returns the number of pieces of data that changed.
+	 */
+	public synchronized int saveChanges(SystemDataSaveLoad data) throws IOException{
+		if(!loaded){
+			throw new IllegalStateException("Attempted to save to a journal before loading it!");
+		}
+		if(journalChannel == null){
+			journalChannel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+		
+		//Find what's dirty.
+		SystemDataSaveLoad changedData = new SystemDataSaveLoad();
+		List<Byte> removedCodes = new ArrayList<Byte>();
+		List<String> removedNames = new ArrayList<String>();
+		int numberChanges = 0;
+		for(byte dataCode : dataCodes){
+			numberChanges += findChanges(dataCode, data, changedData, removedCodes, removedNames);
+		}
+		if(numberChanges == 0){
+			return 0;
+		}
+		
+		//Build and append the entry.  It's forced to disk before we consider it saved.
+		ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+		DataOutputStream payloadStream = new DataOutputStream(payloadBytes);
+		SystemDataSaveLoad.writeVarInt(payloadStream, removedNames.size());
+		for(int i=0; i<removedNames.size(); ++i){
+			payloadStream.writeByte(removedCodes.get(i));
+			payloadStream.writeUTF(removedNames.get(i));
+		}
+		changedData.writeDataToStream(payloadStream);
+		byte[] payload = payloadBytes.toByteArray();
+		CRC32 checksum = new CRC32();
+		checksum.update(payload);
+		ByteBuffer entry = ByteBuffer.allocate(8 + payload.length);
+		entry.putInt(payload.length).putInt((int) checksum.getValue()).put(payload).flip();
+		while(entry.hasRemaining()){
+			journalChannel.write(entry);
+		}
+		journalChannel.force(false);
+		
+		//Entry is on disk, so update what we consider saved.
+		savedData.copyDataFrom(changedData);
+		for(int i=0; i<removedNames.size(); ++i){
+			savedData.getMapForCode(removedCodes.get(i)).remove(removedNames.get(i));
+		}
+		
+		if(journalChannel.size() > compactionThreshold && (pendingCompaction == null || pendingCompaction.isDone())){
+			try{
+				startCompaction();
+			}catch(IOException e){
+				//The entry is already on disk, so the save itself worked.  Report the failure like a failed compaction,
+				//from waitForCompaction() and close(), and try again on the next save.
+				CompletableFuture<Object> failedCompaction = new CompletableFuture<Object>();
+				failedCompaction.completeExceptionally(e);
+				pendingCompaction = failedCompaction;
+			}
+		}
+		return numberChanges;
+	}
+	
+	/**Waits for any running compaction to finish and closes the journal.*/
+	@Override
+	public synchronized void close() throws IOException{
+		try{
+			waitForCompaction();
+		}finally{
+			compactor.shutdown();
+			if(journalChannel != null){
+				journalChannel.close();
+				journalChannel = null;
+			}
+			loaded = false;
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private int findChanges(byte dataCode, SystemDataSaveLoad data, SystemDataSaveLoad changedData, List<Byte> removedCodes, List<String> removedNames){
+		Map<String, ?> currentMap = data.getMapForCode(dataCode);
+		Map<String, ?> savedMap = savedData.getMapForCode(dataCode);
+		Map<String, Object> changedMap = (Map<String, Object>) changedData.getMapForCode(dataCode);
+		int numberChanges = 0;
+		for(Entry<String, ?> currentEntry : currentMap.entrySet()){
+			Object savedValue = savedMap.get(currentEntry.getKey());
+			if(savedValue == null || !isSameValue(savedValue, currentEntry.getValue())){
+				changedMap.put(currentEntry.getKey(), currentEntry.getValue());
+				++numberChanges;
+			}
+		}
+		for(String savedName : savedMap.keySet()){
+			if(!currentMap.containsKey(savedName)){
+				removedCodes.add(dataCode);
+				removedNames.add(savedName);
+				++numberChanges;
+			}
+		}
+		return numberChanges;
+	}
+	
+	private static boolean isSameValue(Object savedValue, Object currentValue){
+		if(savedValue instanceof SystemDataSaveLoad){
+			return ((SystemDataSaveLoad) savedValue).hasSameData((SystemDataSaveLoad) currentValue);
+		}else{
+			return Objects.deepEquals(savedValue, currentValue);
+		}
+	}
+	
+	/**Replays all valid entries in the passed-in journal into the context.  If the journal ends with a torn
+	 * entry and truncation is requested, the file is cut back to the last valid entry.
+	 */
+	private static void replayJournal(Path file, SystemDataSaveLoad data, boolean truncateTornEntries) throws IOException{
+		if(!Files.exists(file)){
+			return;
+		}
+		byte[] journalBytes = Files.readAllBytes(file);
+		ByteBuffer journalBuffer = ByteBuffer.wrap(journalBytes);
+		SystemDataSaveLoad entryData = new SystemDataSaveLoad();
+		int validLength = 0;
+		while(journalBuffer.remaining() >= 8){
+			int payloadLength = journalBuffer.getInt();
+			int payloadChecksum = journalBuffer.getInt();
+			if(payloadLength < 0 || payloadLength > journalBuffer.remaining()){
+				break;
+			}
+			CRC32 checksum = new CRC32();
+			checksum.update(journalBytes, journalBuffer.position(), payloadLength);
+			if((int) checksum.getValue() != payloadChecksum){
+				break;
+			}
+			
+			DataInputStream payloadStream = new DataInputStream(new ByteArrayInputStream(journalBytes, journalBuffer.position(), payloadLength));
+			int numberRemoved = SystemDataSaveLoad.readVarInt(payloadStream);
+			for(int i=0; i<numberRemoved; ++i){
+				Map<String, ?> dataMap = data.getMapForCode(payloadStream.readByte());
+				String dataName = payloadStream.readUTF();
+				if(dataMap == null){
+					throw new IOException("Invalid dataCode detected in journal " + file + ".  Data may be corrupt!");
+				}
+				dataMap.remove(dataName);
+			}
+			entryData.loadDataFromStream(payloadStream);
+			data.copyDataFrom(entryData);
+			
+			journalBuffer.position(journalBuffer.position() + payloadLength);
+			validLength = journalBuffer.position();
+		}
+		if(truncateTornEntries && validLength < journalBytes.length){
+			try(FileChannel truncateChannel = FileChannel.open(file, StandardOpenOption.WRITE)){
+				truncateChannel.truncate(validLength);
+				truncateChannel.force(false);
+			}
+		}
+	}
+	
+	private void startCompaction() throws IOException{
+		//Swap the journal out so saves can continue while the compactor works.
+		//The snapshot we take here is exactly the base file plus the journal we swapped out.
+		//Should anything here fail, the journal is re-opened in the finally, so later saves still work.
+		//If the journal wasn't moved, they simply go on appending to it.
+		journalChannel.close();
+		journalChannel = null;
+		try{
+			if(Files.exists(compactingJournalFile)){
+				//A prior compaction failed.  Tack this journal onto that one so nothing is lost should this one fail too.
+				//The entries must be on disk before the journal is deleted, or a crash in between would lose them.
+				ByteBuffer journalEntries = ByteBuffer.wrap(Files.readAllBytes(journalFile));
+				try(FileChannel compactingChannel = FileChannel.open(compactingJournalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)){
+					while(journalEntries.hasRemaining()){
+						compactingChannel.write(journalEntries);
+					}
+					compactingChannel.force(true);
+				}
+				Files.delete(journalFile);
+			}else{
+				SystemDataSaveService.moveAtomically(journalFile, compactingJournalFile);
+			}
+		}finally{
+			journalChannel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+		final SystemDataSaveLoad snapshotData = new SystemDataSaveLoad();
+		snapshotData.copyDataFrom(savedData);
+		
+		//Should this fail, the old journal is left in place, so it will be replayed on the next load and nothing is lost.
+		//The error is still thrown so waitForCompaction() and close() report it.
+		pendingCompaction = compactor.submit(() -> {
+			Path tempFile = Files.createTempFile(baseFile.toAbsolutePath().getParent(), baseFile.getFileName().toString(), ".tmp");
+			try{
+				try(DataOutputStream tempStream = new DataOutputStream(Files.newOutputStream(tempFile))){
+					snapshotData.writeDataToStream(tempStream);
+				}
+				try(FileChannel tempChannel = FileChannel.open(tempFile, StandardOpenOption.WRITE)){
+					tempChannel.force(true);
+				}
+				SystemDataSaveService.moveAtomically(tempFile, baseFile);
+			}finally{
+				Files.deleteIfExists(tempFile);
+			}
+			Files.delete(compactingJournalFile);
+			return null;
+		});
+	}
+	
+	private void waitForCompaction() throws IOException{
+		if(pendingCompaction != null){
+			try{
+				pendingCompaction.get();
+			}catch(InterruptedException e){
+				//The compaction may still be running, so keep it around for the next wait rather than racing it.
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for journal compaction for " + baseFile + "!");
+			}catch(ExecutionException e){
+				pendingCompaction = null;
+				throw new IOException("Journal compaction for " + baseFile + " failed!", e.getCause());
+			}
+			pendingCompaction = null;
+		}
+	}
+}
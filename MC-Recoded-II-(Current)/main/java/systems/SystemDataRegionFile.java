@@ -0,0 +1,260 @@
+/**
+ * 
+ */
+package systems;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * This class packs the saved data of many objects into a single file, called a region file.
+ * Without this, every block or entity with data would need its own file, which is a lot of files
+ * for most filesystems to handle.  Each region file has a fixed number of slots, and each object
+ * is saved to the slot matching its position or ID.  Helper methods are provided to get the
+ * region and slot for blocks and entities, so all objects in the same region end up in the same file.
+ * <br><br>
+ * The file is split into sectors of {@link #sectorSize} bytes.  The first sectors hold the offset
+ * table, which has a 4-byte sector offset and 4-byte sector count for each slot.  Records start on
+ * a sector boundary and begin with their 4-byte length, followed by the data in the compact format
+ * of {@link SystemDataSaveLoad}.  Records are never written over in place.  Every write goes to the first
+ * free run of sectors that's big enough, with the file only growing if no such run exists.
+ * <br><br>
+ * To keep the file intact should the game crash mid-save, the offset table on disk is only changed by
+ * {@link #flush()}.  This forces all written records to disk, then writes the table entries of all changed
+ * slots, and forces those too.  Until then the table on disk still points to the old records, and their sectors
+ * aren't re-used, so a crash at any point leaves every slot with either its old or its new record, never a torn one.
+ * Sectors of replaced records are only freed once the flush is done, so flush regularly, such as once per autosave,
+ * to keep the file from growing.  Closing the file flushes it.
+ * <br><br>
+ * All methods on this class are synchronized, so a region file may be shared between threads.
+ *
+ * @author don_bruce
+ */
+public class SystemDataRegionFile implements Closeable{
+	public static final int sectorSize = 4096;
+	/**Number of slots in a region.  Block regions are 16x16x16 blocks, and entity regions are 4096 IDs.*/
+	public static final int regionSlots = 4096;
+	private static final int tableSectors = regionSlots*8/sectorSize;
+	
+	private final FileChannel channel;
+	private final int[] sectorOffsets = new int[regionSlots];
+	private final int[] sectorCounts = new int[regionSlots];
+	private final BitSet usedSectors = new BitSet();
+	/**Sectors of replaced records that the table on disk may still point to.  Freed on the next flush.*/
+	private final BitSet pendingFreeSectors = new BitSet();
+	/**Slots whose table entries have changed since the last flush.*/
+	private final BitSet dirtySlots = new BitSet(regionSlots);
+	
+	/**Opens the passed-in region file, creating it if it does not exist.*/
+	public SystemDataRegionFile(Path file) throws IOException{
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		usedSectors.set(0, tableSectors);
+		if(channel.size() == 0){
+			//New file, write an empty table.
+			writeFully(ByteBuffer.allocate(tableSectors*sectorSize), 0);
+			channel.force(false);
+		}else if(channel.size() < tableSectors*sectorSize){
+			//Never treat a short file as new, as writing an empty table would wipe whatever records it has left.
+			long fileSize = channel.size();
+			channel.close();
+			throw new IOException("Region file " + file + " is " + fileSize + " bytes, which is too short to hold the offset table.  Data may be corrupt!");
+		}else{
+			ByteBuffer table = ByteBuffer.allocate(tableSectors*sectorSize);
+			readFully(table, 0);
+			table.flip();
+			long fileSectors = (channel.size() + sectorSize - 1)/sectorSize;
+			for(int slot=0; slot<regionSlots; ++slot){
+				int sectorOffset = table.getInt();
+				int sectorCount = table.getInt();
+				if(sectorCount != 0){
+					if(sectorOffset < tableSectors || sectorOffset + (long) sectorCount > fileSectors){
+						channel.close();
+						throw new IOException("Invalid offset table entry for slot " + slot + " detected in region file " + file + ".  Data may be corrupt!");
+					}
+					sectorOffsets[slot] = sectorOffset;
+					sectorCounts[slot] = sectorCount;
+					usedSectors.set(sectorOffset, sectorOffset + sectorCount);
+				}
+			}
+		}
+	}
+	
+	/**Returns the region coordinate for the passed-in block coordinate.  Use this to pick the region file for a block.*/
+	public static int getBlockRegion(int blockCoord){
+		return blockCoord >> 4;
+	}
+	
+	/**Returns the slot in its region for the block at the passed-in position.*/
+	public static int getBlockSlot(int x, int y, int z){
+		return ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+	}
+	
+	/**Returns the region for the entity with the passed-in ID.  Use this to pick the region file for an entity.*/
+	public static long getEntityRegion(long entityID){
+		return entityID >> 12;
+	}
+	
+	/**Returns the slot in its region for the entity with the passed-in ID.*/
+	public static int getEntitySlot(long entityID){
+		return (int) (entityID & (regionSlots - 1));
+	}
+	
+	/**Returns true if the passed-in slot has data saved to it.*/
+	public synchronized boolean hasRecord(int slot){
+		return sectorCounts[slot] != 0;
+	}
+	
+	/**Saves the data in the passed-in context to the passed-in slot, replacing any data already there.
+	 * Like saving to a stream, the context is cleared afterwards.
+	 */
+	public void saveRecord(int slot, SystemDataSaveLoad data) throws IOException{
+		ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+		data.saveDataToStream(new DataOutputStream(recordBytes));
+		writeRecord(slot, recordBytes.toByteArray());
+	}
+	
+	/**Loads the data in the passed-in slot into the passed-in context.  Returns false if there is no data in that slot.*/
+	public boolean loadRecord(int slot, SystemDataSaveLoad data) throws IOException{
+		byte[] record = readRecord(slot);
+		if(record != null){
+			data.loadDataFromStream(new DataInputStream(new ByteArrayInputStream(record)));
+			return true;
+		}else{
+			return false;
+		}
+	}
+	
+	/**Returns a cursor for the data in the passed-in slot, or null if there is no data in that slot.*/
+	public SystemDataCursor getRecordCursor(int slot) throws IOException{
+		byte[] record = readRecord(slot);
+		return record != null ? new SystemDataCursor(new DataInputStream(new ByteArrayInputStream(record))) : null;
+	}
+	
+	/**Returns the raw bytes in the passed-in slot, or null if there is no data in that slot.*/
+	public synchronized byte[] readRecord(int slot) throws IOException{
+		if(sectorCounts[slot] == 0){
+			return null;
+		}
+		long recordPosition = (long) sectorOffsets[slot]*sectorSize;
+		ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+		readFully(lengthBuffer, recordPosition);
+		int recordLength = lengthBuffer.getInt(0);
+		if(recordLength < 0 || recordLength + 4 > (long) sectorCounts[slot]*sectorSize){
+			throw new IOException("Invalid record length of " + recordLength + " detected for slot " + slot + ".  Data may be corrupt!");
+		}
+		ByteBuffer record = ByteBuffer.allocate(recordLength);
+		readFully(record, recordPosition + 4);
+		return record.array();
+	}
+	
+	/**Writes the raw bytes to the passed-in slot, replacing any data already there.
+	 * The new record is written to free sectors, and only replaces the old one on disk once flushed.
+	 */
+	public synchronized void writeRecord(int slot, byte[] record) throws IOException{
+		//The old sectors are still marked as used here, so the new record can never land on top of them.
+		int neededSectors = (record.length + 4 + sectorSize - 1)/sectorSize;
+		int sectorOffset = findFreeSectors(neededSectors);
+		usedSectors.set(sectorOffset, sectorOffset + neededSectors);
+		
+		//Pad the record out to the sector boundary so the file always ends on one.
+		ByteBuffer recordBuffer = ByteBuffer.allocate(neededSectors*sectorSize);
+		recordBuffer.putInt(record.length).put(record).clear();
+		try{
+			writeFully(recordBuffer, (long) sectorOffset*sectorSize);
+		}catch(IOException e){
+			usedSectors.clear(sectorOffset, sectorOffset + neededSectors);
+			throw e;
+		}
+		replaceTableEntry(slot, sectorOffset, neededSectors);
+	}
+	
+	/**Removes the data in the passed-in slot.  Like writing, this only changes the file on disk once flushed.*/
+	public synchronized void deleteRecord(int slot) throws IOException{
+		if(sectorCounts[slot] != 0){
+			replaceTableEntry(slot, 0, 0);
+		}
+	}
+	
+	/**Forces all written records to disk, and then updates the offset table on disk to point to them.
+	 * Sectors of records that were replaced or deleted are free for re-use after this.
+	 */
+	public synchronized void flush() throws IOException{
+		if(dirtySlots.isEmpty()){
+			channel.force(false);
+			return;
+		}
+		//Records must be on disk before the table points to them.
+		channel.force(false);
+		for(int slot = dirtySlots.nextSetBit(0); slot != -1; slot = dirtySlots.nextSetBit(slot + 1)){
+			ByteBuffer entry = ByteBuffer.allocate(8);
+			entry.putInt(sectorOffsets[slot]).putInt(sectorCounts[slot]).flip();
+			writeFully(entry, slot*8L);
+		}
+		channel.force(false);
+		dirtySlots.clear();
+		//The table on disk no longer points to the old records, so their sectors may be re-used.
+		usedSectors.andNot(pendingFreeSectors);
+		pendingFreeSectors.clear();
+	}
+	
+	@Override
+	public synchronized void close() throws IOException{
+		try{
+			flush();
+		}finally{
+			channel.close();
+		}
+	}
+	
+	/**Returns the first sector of a free run with the passed-in length.  This may be past the end of the file.*/
+	private int findFreeSectors(int neededSectors){
+		int runStart = usedSectors.nextClearBit(tableSectors);
+		while(true){
+			int runEnd = usedSectors.nextSetBit(runStart);
+			if(runEnd == -1 || runEnd - runStart >= neededSectors){
+				return runStart;
+			}
+			runStart = usedSectors.nextClearBit(runEnd);
+		}
+	}
+	
+	/**Points the passed-in slot to new sectors in memory, and marks it to be written to the table on the next flush.*/
+	private void replaceTableEntry(int slot, int sectorOffset, int sectorCount){
+		int oldSectorOffset = sectorOffsets[slot];
+		int oldSectorCount = sectorCounts[slot];
+		if(oldSectorCount != 0){
+			if(dirtySlots.get(slot)){
+				//The old record was never in the table on disk, so nothing can point to it and it may be freed now.
+				usedSectors.clear(oldSectorOffset, oldSectorOffset + oldSectorCount);
+			}else{
+				pendingFreeSectors.set(oldSectorOffset, oldSectorOffset + oldSectorCount);
+			}
+		}
+		sectorOffsets[slot] = sectorOffset;
+		sectorCounts[slot] = sectorCount;
+		dirtySlots.set(slot);
+	}
+	
+	private void readFully(ByteBuffer buffer, long position) throws IOException{
+		while(buffer.hasRemaining()){
+			if(channel.read(buffer, position + buffer.position()) < 0){
+				throw new IOException("End of region file reached before all data was read.  Data may be corrupt!");
+			}
+		}
+	}
+	
+	private void writeFully(ByteBuffer buffer, long position) throws IOException{
+		while(buffer.hasRemaining()){
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * 
+ */
+package systems;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import registries.ARegistry;
+import registries.IRegistryObject;
+
+/**
+ * This class lets saved data refer to registered objects by their numeric ID rather than their name.
+ * IDs are handed out in name order when the registries are frozen, so they may change between runs if mods
+ * are added or removed.  To handle this, the name of every ID in every registry is written once per save
+ * with {@link #writeMapping(DataOutputStream)}, normally to its own file next to the rest of the save.
+ * When the save is loaded, {@link #readMapping(DataInputStream)} matches those names up with the current
+ * registries and builds a table to turn saved IDs into current ones.  This mapping should then be set on
+ * every {@link SystemDataSaveLoad} context or {@link SystemDataCursor} used to load that save, and passed
+ * to {@link capabilities.ICapability#readData(DataInputStream, SystemDataRegistryMapping)}, so saved IDs
+ * may be looked up with the matching getRegistryObject methods.
+ * <br><br>
+ * Objects that were saved but are no longer registered have no current ID, and will be looked up as null.
+ * Should the registration order not have changed, no table is made for that registry and IDs are used as-is.
+ *
+ * @author don_bruce
+ */
+public class SystemDataRegistryMapping{
+	/**Tables of saved ID to current ID for each registry type.  Registries whose IDs haven't changed have no table.*/
+	private final Map<String, int[]> idTables;
+	
+	private SystemDataRegistryMapping(Map<String, int[]> idTables){
+		this.idTables = idTables;
+	}
+	
+	/**Writes the names of all IDs of all registries to the passed-in stream.  This should be done once per save,
+	 * after the registries have been frozen.
+	 */
+	public static void writeMapping(DataOutputStream outputStream) throws IOException{
+		for(ARegistry<? extends IRegistryObject> registry : SystemRegistryManager.getRegistries()){
+			outputStream.writeBoolean(true);
+			outputStream.writeUTF(registry.getType());
+			SystemDataSaveLoad.writeVarInt(outputStream, registry.getIdCount());
+			for(int id=0; id<registry.getIdCount(); ++id){
+				outputStream.writeUTF(registry.getNameById(id));
+			}
+		}
+		outputStream.writeBoolean(false);
+	}
+	
+	/**Reads the names written by {@link #writeMapping(DataOutputStream)} and matches them up with the current registries.*/
+	public static SystemDataRegistryMapping readMapping(DataInputStream inputStream) throws IOException{
+		Map<String, int[]> idTables = new HashMap<String, int[]>();
+		while(inputStream.readBoolean()){
+			String registryType = inputStream.readUTF();
+			Map<String, Integer> currentIDs = getCurrentIDs(SystemRegistryManager.getRegistryByType(registryType));
+			int[] idTable = new int[SystemDataSaveLoad.readVarInt(inputStream)];
+			boolean idsChanged = false;
+			for(int savedID=0; savedID<idTable.length; ++savedID){
+				String objectName = inputStream.readUTF();
+				Integer currentID = currentIDs.get(objectName);
+				idTable[savedID] = currentID != null ? currentID : -1;
+				idsChanged |= idTable[savedID] != savedID;
+			}
+			if(idsChanged){
+				idTables.put(registryType, idTable);
+			}
+		}
+		return new SystemDataRegistryMapping(idTables);
+	}
+	
+	/**Returns a map of name to ID for all objects in the passed-in registry.  Null registries give an empty map.*/
+	private static Map<String, Integer> getCurrentIDs(ARegistry<? extends IRegistryObject> registry){
+		Map<String, Integer> currentIDs = new HashMap<String, Integer>();
+		if(registry != null){
+			for(int id=0; id<registry.getIdCount(); ++id){
+				currentIDs.put(registry.getNameById(id), id);
+			}
+		}
+		return currentIDs;
+	}
+	
+	/**Returns the current ID for the passed-in saved ID, or -1 if the object with that ID is no longer registered.*/
+	public int getCurrentID(ARegistry<? extends IRegistryObject> registry, int savedID){
+		int[] idTable = idTables.get(registry.getType());
+		if(idTable == null){
+			return savedID;
+		}else{
+			return savedID >= 0 && savedID < idTable.length ? idTable[savedID] : -1;
+		}
+	}
+	
+	/**Returns the currently-registered object for the passed-in saved ID, or null if there is no such object.*/
+	public <RegistryObject extends IRegistryObject> RegistryObject getObject(ARegistry<RegistryObject> registry, int savedID){
+		return registry.getById(getCurrentID(registry, savedID));
+	}
+}
@@ -3,24 +3,52 @@
  */
 package systems;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+
+import registries.ARegistry;
+import registries.IRegistryObject;
 
 /**
  * This class allows saving and loading data stored on the disk.
  * Data is placed in their appropriate maps when loadDataFromStream is called.
- * Note that these maps are <i>static</i> variables, which means that they will change whenever
- * new data is loaded.  This means that you should NOT use this class as a data storage
+ * Each instance of this class is a context for a single save or load operation.  Create
+ * a new instance for every object you save or load, and pass it to the capabilities of that
+ * object.  Because the maps belong to the instance rather than the class, any number of
+ * contexts may be used in parallel on different threads, provided that a single context
+ * is only used by one thread at a time.  Note that you should NOT use this class as a data storage
  * variable like you do with NBT Types in MC.  Rather, you should copy out the data you need
  * to whatever object is calling for it.  This prevents information fragmentation between
  * class variables and saved data variables, and allows for cleaner code where all data for
  * an object is visible as a variable in that object.
  * 
+ * Data is saved in the compact format by default.  This format writes a dictionary of all
+ * data names once at the start of the stream, and then refers to names by their index in
+ * that dictionary.  Integers and longs are written as zig-zag varints, doubles as bit-reversed varints
+ * (which keeps round numbers short), and booleans are packed into bitsets.  Streams saved in the
+ * older legacy format, where each record carries its full name, may still be loaded.
+ * 
+ * Data may also be grouped into sections, which are nested contexts stored in the {@link #sectionMap}.
+ * Sections are saved with their length in bytes, so readers that don't care about a section can skip
+ * it without parsing it.  Objects that save data for multiple things, such as capabilities, should give
+ * each thing its own section via {@link #getSection(String)} so their names don't collide.
+ * 
+ * Registered objects should be saved by their numeric ID rather than their name.  When loading, set the
+ * {@link SystemDataRegistryMapping} of the save on the context so these IDs can be turned back into objects
+ * with {@link #getRegistryObject(ARegistry, int)}, even if the registration order has changed since.
+ * 
  * Note that this class may be extended and replaced by mods that wish to modify the 
  * saving system.  This allows for other data types to easily be added to the system
  * class and saved/loaded from disk.  While it is not expected that this will be required,
@@ -29,49 +57,55 @@ import java.util.Map.Entry;
  * @author don_bruce
  */
 public class SystemDataSaveLoad{
-	public static final Map<String, Boolean> booleanMap = new HashMap<String, Boolean>();
-	public static final Map<String, Integer> integerMap = new HashMap<String, Integer>();
-	public static final Map<String, Double> doubleMap = new HashMap<String, Double>();
-	public static final Map<String, String> stringMap = new HashMap<String, String>();
-	
-	public static final Map<String, Boolean[]> booleanArrayMap = new HashMap<String, Boolean[]>();
-	public static final Map<String, Integer[]> integerArrayMap = new HashMap<String, Integer[]>();
-	public static final Map<String, Double[]> doubleArrayMap = new HashMap<String, Double[]>();
-	public static final Map<String, String[]> stringArrayMap = new HashMap<String, String[]>();
-	
-	protected static final byte booleanDataCode = 0;
-	protected static final byte integerDataCode = 1;
-	protected static final byte doubleDataCode = 2;
-	protected static final byte stringDataCode = 3;
-	
-	protected static final byte booleanArrayDataCode = 10;
-	protected static final byte integerArrayDataCode = 11;
-	protected static final byte doubleArrayDataCode = 12;
-	protected static final byte stringArrayDataCode = 13;
-	
-	/**Loads data from the specified stream into the internal maps of this class.
+	public final Map<String, Boolean> booleanMap = new HashMap<String, Boolean>();
+	public final Map<String, Integer> integerMap = new HashMap<String, Integer>();
+	public final Map<String, Double> doubleMap = new HashMap<String, Double>();
+	public final Map<String, String> stringMap = new HashMap<String, String>();
+	public final Map<String, Long> longMap = new HashMap<String, Long>();
+	
+	public final Map<String, boolean[]> booleanArrayMap = new HashMap<String, boolean[]>();
+	public final Map<String, int[]> integerArrayMap = new HashMap<String, int[]>();
+	public final Map<String, double[]> doubleArrayMap = new HashMap<String, double[]>();
+	public final Map<String, String[]> stringArrayMap = new HashMap<String, String[]>();
+	
+	public final Map<String, SystemDataSaveLoad> sectionMap = new HashMap<String, SystemDataSaveLoad>();
+	
+	private SystemDataRegistryMapping registryMapping;
+	
+	public static final byte booleanDataCode = 0;
+	public static final byte integerDataCode = 1;
+	public static final byte doubleDataCode = 2;
+	public static final byte stringDataCode = 3;
+	public static final byte sectionDataCode = 4;
+	public static final byte longDataCode = 5;
+	
+	public static final byte booleanArrayDataCode = 10;
+	public static final byte integerArrayDataCode = 11;
+	public static final byte doubleArrayDataCode = 12;
+	public static final byte stringArrayDataCode = 13;
+	
+	/**Most bytes a single array or dictionary may need in memory when loaded.  Anything over this is taken to be corrupt.*/
+	public static final int maxDataBytes = 64*1024*1024;
+	
+	/**First byte of streams saved in the compact format.  Legacy streams start with a data code or terminator instead.*/
+	protected static final byte compactFormatCode = 64;
+	
+	/**Loads data from the specified stream into the maps of this context.
 	 * This is used to get data that was saved to disk and put it into classes.
-	 * It is up to the class to copy over the data saved in the maps as they are volatile!
+	 * It is up to the class to copy over the data saved in the maps as they are cleared
+	 * if this context is used to load another stream!
 	 */
-	public static void loadDataFromStream(DataInputStream inputStream) throws IOException{
+	public void loadDataFromStream(DataInputStream inputStream) throws IOException{
 		//Clear out maps.
 		clearMaps();
 		
 		//Main stream iteration loop.
 		try{
-			for(byte dataCode = inputStream.readByte(); dataCode != -1; dataCode = inputStream.readByte()){
-				//First get the String-based name for the data.
-				String dataName = inputStream.readUTF();
-				
-				//Now we use the opcode to get the data.
-				//0 is a boolean, 1 is an integer, 2 is a double, 3 is a string.
-				//If the opcode is greater than 9, then that means we have an array.
-				//Numbers 5-9 and 15-19 are reserved for future use or mod implementations.
-				if(dataCode < 10){
-					inputSingleData(dataCode, dataName, inputStream);
-				}else{
-					inputArrayData(dataCode, dataName, inputStream);
-				}
+			byte dataCode = inputStream.readByte();
+			if(dataCode == compactFormatCode){
+				inputCompactData(inputStream);
+			}else{
+				inputLegacyData(dataCode, inputStream);
 			}
 		}catch(EOFException e){
 			throw new IOException("End of inputStream reached, but terminator of -1 was not detected.  Data may be corrupt!");
@@ -80,7 +114,116 @@ public class SystemDataSaveLoad{
 		}
 	}
 	
-	protected static void inputSingleData(byte dataCode, String dataName, DataInputStream inputStream) throws IOException{
+	/**Loads data saved in the legacy format, up to and including the terminator.  The first data code has already been read at this point.*/
+	protected void inputLegacyData(byte dataCode, DataInputStream inputStream) throws IOException{
+		for(; dataCode != -1; dataCode = inputStream.readByte()){
+			//First get the String-based name for the data.
+			String dataName = inputStream.readUTF();
+			
+			//Now we use the opcode to get the data.
+			//0 is a boolean, 1 is an integer, 2 is a double, 3 is a string, 4 is a section, 5 is a long.
+			//If the opcode is greater than 9, then that means we have an array.
+			//Numbers 6-9 and 15-19 are reserved for future use or mod implementations.
+			if(dataCode == sectionDataCode){
+				//Sections are their own set of records, complete with terminator.
+				//The length is only used by readers that wish to skip the section.
+				inputStream.readInt();
+				getSection(dataName).inputLegacyData(inputStream.readByte(), inputStream);
+			}else if(dataCode < 10){
+				inputSingleData(dataCode, dataName, inputStream);
+			}else{
+				inputArrayData(dataCode, dataName, inputStream);
+			}
+		}
+	}
+	
+	/**Loads data saved in the compact format.  The format code has already been read at this point.*/
+	protected void inputCompactData(DataInputStream inputStream) throws IOException{
+		//First get the dictionary of names.  Records refer to these by index.
+		int dictionaryLength = readVarInt(inputStream);
+		String[] dictionary = new String[checkLength(dictionaryLength, dictionaryLength*4L, "the dictionary")];
+		for(int i=0; i<dictionary.length; ++i){
+			dictionary[i] = inputStream.readUTF();
+		}
+		inputCompactRecords(dictionary, inputStream);
+	}
+	
+	/**Loads the records of a compact stream, up to and including the terminator.  Sections share the dictionary of the stream they are in.*/
+	protected void inputCompactRecords(String[] dictionary, DataInputStream inputStream) throws IOException{
+		//First are the single booleans, which are packed into one bitset for all of them.
+		int booleanCount = readVarInt(inputStream);
+		checkLength(booleanCount, booleanCount*5L, "the booleans");
+		int[] booleanNameIndexes = new int[booleanCount];
+		for(int i=0; i<booleanCount; ++i){
+			booleanNameIndexes[i] = readVarInt(inputStream);
+		}
+		boolean[] booleanValues = readBitset(inputStream, booleanCount);
+		for(int i=0; i<booleanCount; ++i){
+			booleanMap.put(getDictionaryName(dictionary, booleanNameIndexes[i]), booleanValues[i]);
+		}
+		
+		//Now parse the rest of the records.  These work like the legacy records, save for the name index.
+		for(byte dataCode = inputStream.readByte(); dataCode != -1; dataCode = inputStream.readByte()){
+			String dataName = getDictionaryName(dictionary, readVarInt(inputStream));
+			if(dataCode == integerDataCode){
+				integerMap.put(dataName, readZigZagVarInt(inputStream));
+			}else if(dataCode == doubleDataCode){
+				doubleMap.put(dataName, Double.longBitsToDouble(Long.reverse(readVarLong(inputStream))));
+			}else if(dataCode == stringDataCode){
+				stringMap.put(dataName, inputStream.readUTF());
+			}else if(dataCode == longDataCode){
+				longMap.put(dataName, readZigZagVarLong(inputStream));
+			}else if(dataCode == booleanArrayDataCode){
+				int arrayLength = readVarInt(inputStream);
+				booleanArrayMap.put(dataName, readBitset(inputStream, checkLength(arrayLength, arrayLength, dataName)));
+			}else if(dataCode == integerArrayDataCode){
+				int arrayLength = readVarInt(inputStream);
+				int[] integerArray = new int[checkLength(arrayLength, arrayLength*(long) Integer.BYTES, dataName)];
+				for(int i=0; i<integerArray.length; ++i){
+					integerArray[i] = readZigZagVarInt(inputStream);
+				}
+				integerArrayMap.put(dataName, integerArray);
+			}else if(dataCode == doubleArrayDataCode){
+				//Doubles in arrays are rarely round, so these stay at full width and are read in bulk.
+				int arrayLength = readVarInt(inputStream);
+				double[] doubleArray = new double[checkLength(arrayLength, arrayLength*(long) Double.BYTES, dataName)];
+				readBulkData(inputStream, doubleArray.length*Double.BYTES).asDoubleBuffer().get(doubleArray);
+				doubleArrayMap.put(dataName, doubleArray);
+			}else if(dataCode == stringArrayDataCode){
+				int arrayLength = readVarInt(inputStream);
+				String[] stringArray = new String[checkLength(arrayLength, arrayLength*4L, dataName)];
+				for(int i=0; i<stringArray.length; ++i){
+					stringArray[i] = inputStream.readUTF();
+				}
+				stringArrayMap.put(dataName, stringArray);
+			}else if(dataCode == sectionDataCode){
+				readVarInt(inputStream);
+				getSection(dataName).inputCompactRecords(dictionary, inputStream);
+			}else{
+				throw new IOException("Invalid dataCode of " + dataCode + " detected when parsing compact data from storage!");
+			}
+		}
+	}
+	
+	/**Checks a length read from a stream before anything is made with it.  Lengths must not be negative, and the
+	 * passed-in number of bytes the data needs in memory must not be over {@link #maxDataBytes}.  This way corrupt
+	 * data throws an IOException rather than making a negative or huge array, no matter what kind of stream it's read from.
+	 */
+	protected static int checkLength(int length, long lengthBytes, String dataName) throws IOException{
+		if(length < 0 || lengthBytes > maxDataBytes){
+			throw new IOException("Invalid length of " + length + " detected when parsing " + dataName + " from storage!");
+		}
+		return length;
+	}
+	
+	private static String getDictionaryName(String[] dictionary, int nameIndex) throws IOException{
+		if(nameIndex < 0 || nameIndex >= dictionary.length){
+			throw new IOException("Invalid name index of " + nameIndex + " detected when parsing compact data from storage!");
+		}
+		return dictionary[nameIndex];
+	}
+	
+	protected void inputSingleData(byte dataCode, String dataName, DataInputStream inputStream) throws IOException{
 		if(dataCode == booleanDataCode){
 			booleanMap.put(dataName, inputStream.readBoolean());
 		}else if(dataCode == integerDataCode){
@@ -89,37 +232,38 @@ public class SystemDataSaveLoad{
 			doubleMap.put(dataName, inputStream.readDouble());
 		}else if(dataCode == stringDataCode){
 			stringMap.put(dataName, inputStream.readUTF());
+		}else if(dataCode == longDataCode){
+			longMap.put(dataName, inputStream.readLong());
 		}else{
 			throw new IOException("Invalid dataCode of " + dataCode + " detected when parsing data from storage!");
 		}
 	}
 	
-	protected static void inputArrayData(byte dataCode, String dataName, DataInputStream inputStream) throws IOException{
-		//The first two bytes here define the array length.
+	protected void inputArrayData(byte dataCode, String dataName, DataInputStream inputStream) throws IOException{
+		//The first four bytes here define the array length.
 		//Get that information first as we need to know how many elements we need to parse.
-		//Afterwards we parse out those elements in a loop.
-		short arrayLength = inputStream.readShort();
+		//Primitive arrays are then read in one bulk transfer rather than element-by-element.
+		int arrayLength = inputStream.readInt();
 		if(dataCode == booleanArrayDataCode){
-			Boolean[] booleanArray = new Boolean[arrayLength];
-			for(short i=0; i<arrayLength; ++i){
-				booleanArray[i] = inputStream.readBoolean();
+			checkLength(arrayLength, arrayLength*2L, dataName);
+			byte[] rawData = new byte[arrayLength];
+			inputStream.readFully(rawData);
+			boolean[] booleanArray = new boolean[arrayLength];
+			for(int i=0; i<arrayLength; ++i){
+				booleanArray[i] = rawData[i] != 0;
 			}
 			booleanArrayMap.put(dataName, booleanArray);
 		}else if(dataCode == integerArrayDataCode){
-			Integer[] integerArray = new Integer[arrayLength];
-			for(short i=0; i<arrayLength; ++i){
-				integerArray[i] = inputStream.readInt();
-			}
+			int[] integerArray = new int[checkLength(arrayLength, arrayLength*(long) Integer.BYTES, dataName)];
+			readBulkData(inputStream, arrayLength*Integer.BYTES).asIntBuffer().get(integerArray);
 			integerArrayMap.put(dataName, integerArray);
 		}else if(dataCode == doubleArrayDataCode){
-			Double[] doubleArray = new Double[arrayLength];
-			for(short i=0; i<arrayLength; ++i){
-				doubleArray[i] = inputStream.readDouble();
-			}
+			double[] doubleArray = new double[checkLength(arrayLength, arrayLength*(long) Double.BYTES, dataName)];
+			readBulkData(inputStream, arrayLength*Double.BYTES).asDoubleBuffer().get(doubleArray);
 			doubleArrayMap.put(dataName, doubleArray);
 		}else if(dataCode == stringArrayDataCode){
-			String[] stringArray = new String[arrayLength];
-			for(short i=0; i<arrayLength; ++i){
+			String[] stringArray = new String[checkLength(arrayLength, arrayLength*4L, dataName)];
+			for(int i=0; i<arrayLength; ++i){
 				stringArray[i] = inputStream.readUTF();
 			}
 			stringArrayMap.put(dataName, stringArray);
@@ -128,19 +272,202 @@ public class SystemDataSaveLoad{
 		}
 	}
 	
-	/**Writes whatever data is currently in the maps to the specified stream.
-	 * This is done when saving data from classes.
+	/**Reads the specified number of bytes from the stream and wraps them in a buffer for bulk decoding.*/
+	protected static ByteBuffer readBulkData(DataInputStream inputStream, int numberBytes) throws IOException{
+		byte[] rawData = new byte[numberBytes];
+		inputStream.readFully(rawData);
+		return ByteBuffer.wrap(rawData);
+	}
+	
+	/**Writes whatever data is currently in the maps of this context to the specified stream.
+	 * This is done when saving data from classes.  The maps are cleared afterwards, so
+	 * the context may be re-used for the next save operation on the same thread.
+	 */
+	public void saveDataToStream(DataOutputStream outputStream) throws IOException{
+		writeDataToStream(outputStream);
+		outputStream.close();
+		clearMaps();
+	}
+	
+	/**Writes the data in this context in the compact format without closing the stream or clearing the maps.
+	 * This is used by systems that need to keep the data after writing it, such as the journal.
+	 */
+	protected void writeDataToStream(DataOutputStream outputStream) throws IOException{
+		checkSaveLengths();
+		outputStream.writeByte(compactFormatCode);
+		outputCompactData(outputStream);
+	}
+	
+	/**Like {@link #saveDataToStream(DataOutputStream)}, but writes the legacy format where every
+	 * record carries its full name.  Note that older versions can't read this, as arrays are written
+	 * with int lengths and sections and longs may be present.  Use this only for tools that need full names in
+	 * every record.  {@link #loadDataFromStream(DataInputStream)} reads either format.
 	 */
-	public static void saveDataToStream(DataOutputStream outputStream) throws IOException{
+	public void saveDataToLegacyStream(DataOutputStream outputStream) throws IOException{
+		checkSaveLengths();
+		outputLegacyData(outputStream);
+		outputStream.close();
+		clearMaps();
+	}
+	
+	/**Writes all records in the legacy format, followed by the terminator.*/
+	protected void outputLegacyData(DataOutputStream outputStream) throws IOException{
 		outputSingleData(outputStream);
 		outputArrayData(outputStream);
+		for(Entry<String, SystemDataSaveLoad> sectionMapEntry : sectionMap.entrySet()){
+			ByteArrayOutputStream sectionBytes = new ByteArrayOutputStream();
+			sectionMapEntry.getValue().outputLegacyData(new DataOutputStream(sectionBytes));
+			outputStream.writeByte(sectionDataCode);
+			outputStream.writeUTF(sectionMapEntry.getKey());
+			outputStream.writeInt(sectionBytes.size());
+			sectionBytes.writeTo(outputStream);
+		}
 		//End of data terminator.
 		outputStream.writeByte(-1);
-		outputStream.close();
-		clearMaps();
 	}
 	
-	protected static void outputSingleData(DataOutputStream outputStream) throws IOException{
+	/**Checks that all data in this context, and all its sections, could be loaded back by {@link #checkLength(int, long, String)}.
+	 * This is done before anything is written, so data that's too large fails the save rather than the next load.
+	 */
+	private void checkSaveLengths() throws IOException{
+		checkSaveLength(booleanMap.size()*5L, "the booleans");
+		for(Entry<String, boolean[]> booleanArrayMapEntry : booleanArrayMap.entrySet()){
+			checkSaveLength(booleanArrayMapEntry.getValue().length*2L, booleanArrayMapEntry.getKey());
+		}
+		for(Entry<String, int[]> integerArrayMapEntry : integerArrayMap.entrySet()){
+			checkSaveLength(integerArrayMapEntry.getValue().length*(long) Integer.BYTES, integerArrayMapEntry.getKey());
+		}
+		for(Entry<String, double[]> doubleArrayMapEntry : doubleArrayMap.entrySet()){
+			checkSaveLength(doubleArrayMapEntry.getValue().length*(long) Double.BYTES, doubleArrayMapEntry.getKey());
+		}
+		for(Entry<String, String[]> stringArrayMapEntry : stringArrayMap.entrySet()){
+			checkSaveLength(stringArrayMapEntry.getValue().length*4L, stringArrayMapEntry.getKey());
+		}
+		for(SystemDataSaveLoad section : sectionMap.values()){
+			section.checkSaveLengths();
+		}
+	}
+	
+	private static void checkSaveLength(long lengthBytes, String dataName) throws IOException{
+		if(lengthBytes > maxDataBytes){
+			throw new IOException("Attempted to save " + dataName + ", but it needs more than the max of " + maxDataBytes + " bytes!");
+		}
+	}
+	
+	protected void outputCompactData(DataOutputStream outputStream) throws IOException{
+		//Build the dictionary first, and write it out so the reader has it before any records.
+		Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+		addDictionaryNames(dictionary);
+		checkSaveLength(dictionary.size()*4L, "the dictionary");
+		writeVarInt(outputStream, dictionary.size());
+		for(String dataName : dictionary.keySet()){
+			outputStream.writeUTF(dataName);
+		}
+		outputCompactRecords(dictionary, outputStream);
+	}
+	
+	/**Writes all records in the compact format, followed by the terminator.*/
+	protected void outputCompactRecords(Map<String, Integer> dictionary, DataOutputStream outputStream) throws IOException{
+		//Single booleans go first as one bitset.
+		boolean[] booleanValues = new boolean[booleanMap.size()];
+		int booleanIndex = 0;
+		writeVarInt(outputStream, booleanMap.size());
+		for(Entry<String, Boolean> booleanMapEntry : booleanMap.entrySet()){
+			writeVarInt(outputStream, dictionary.get(booleanMapEntry.getKey()));
+			booleanValues[booleanIndex++] = booleanMapEntry.getValue();
+		}
+		writeBitset(outputStream, booleanValues);
+		
+		//Now the rest of the records.
+		for(Entry<String, Integer> integerMapEntry : integerMap.entrySet()){
+			outputStream.writeByte(integerDataCode);
+			writeVarInt(outputStream, dictionary.get(integerMapEntry.getKey()));
+			writeZigZagVarInt(outputStream, integerMapEntry.getValue());
+		}
+		for(Entry<String, Double> doubleMapEntry : doubleMap.entrySet()){
+			outputStream.writeByte(doubleDataCode);
+			writeVarInt(outputStream, dictionary.get(doubleMapEntry.getKey()));
+			writeVarLong(outputStream, Long.reverse(Double.doubleToLongBits(doubleMapEntry.getValue())));
+		}
+		for(Entry<String, String> stringMapEntry : stringMap.entrySet()){
+			outputStream.writeByte(stringDataCode);
+			writeVarInt(outputStream, dictionary.get(stringMapEntry.getKey()));
+			outputStream.writeUTF(stringMapEntry.getValue());
+		}
+		for(Entry<String, Long> longMapEntry : longMap.entrySet()){
+			outputStream.writeByte(longDataCode);
+			writeVarInt(outputStream, dictionary.get(longMapEntry.getKey()));
+			writeZigZagVarLong(outputStream, longMapEntry.getValue());
+		}
+		for(Entry<String, boolean[]> booleanArrayMapEntry : booleanArrayMap.entrySet()){
+			outputStream.writeByte(booleanArrayDataCode);
+			writeVarInt(outputStream, dictionary.get(booleanArrayMapEntry.getKey()));
+			writeVarInt(outputStream, booleanArrayMapEntry.getValue().length);
+			writeBitset(outputStream, booleanArrayMapEntry.getValue());
+		}
+		for(Entry<String, int[]> integerArrayMapEntry : integerArrayMap.entrySet()){
+			outputStream.writeByte(integerArrayDataCode);
+			writeVarInt(outputStream, dictionary.get(integerArrayMapEntry.getKey()));
+			writeVarInt(outputStream, integerArrayMapEntry.getValue().length);
+			for(int data : integerArrayMapEntry.getValue()){
+				writeZigZagVarInt(outputStream, data);
+			}
+		}
+		for(Entry<String, double[]> doubleArrayMapEntry : doubleArrayMap.entrySet()){
+			double[] doubleArray = doubleArrayMapEntry.getValue();
+			outputStream.writeByte(doubleArrayDataCode);
+			writeVarInt(outputStream, dictionary.get(doubleArrayMapEntry.getKey()));
+			writeVarInt(outputStream, doubleArray.length);
+			ByteBuffer rawData = ByteBuffer.allocate(doubleArray.length*Double.BYTES);
+			rawData.asDoubleBuffer().put(doubleArray);
+			outputStream.write(rawData.array());
+		}
+		for(Entry<String, String[]> stringArrayMapEntry : stringArrayMap.entrySet()){
+			outputStream.writeByte(stringArrayDataCode);
+			writeVarInt(outputStream, dictionary.get(stringArrayMapEntry.getKey()));
+			writeVarInt(outputStream, stringArrayMapEntry.getValue().length);
+			for(String data : stringArrayMapEntry.getValue()){
+				outputStream.writeUTF(data);
+			}
+		}
+		for(Entry<String, SystemDataSaveLoad> sectionMapEntry : sectionMap.entrySet()){
+			ByteArrayOutputStream sectionBytes = new ByteArrayOutputStream();
+			sectionMapEntry.getValue().outputCompactRecords(dictionary, new DataOutputStream(sectionBytes));
+			outputStream.writeByte(sectionDataCode);
+			writeVarInt(outputStream, dictionary.get(sectionMapEntry.getKey()));
+			writeVarInt(outputStream, sectionBytes.size());
+			sectionBytes.writeTo(outputStream);
+		}
+		//End of data terminator.
+		outputStream.writeByte(-1);
+	}
+	
+	/**Adds the names of all data in this context, and all its sections, to the dictionary.*/
+	private void addDictionaryNames(Map<String, Integer> dictionary){
+		addDictionaryNames(dictionary, booleanMap.keySet());
+		addDictionaryNames(dictionary, integerMap.keySet());
+		addDictionaryNames(dictionary, doubleMap.keySet());
+		addDictionaryNames(dictionary, stringMap.keySet());
+		addDictionaryNames(dictionary, longMap.keySet());
+		addDictionaryNames(dictionary, booleanArrayMap.keySet());
+		addDictionaryNames(dictionary, integerArrayMap.keySet());
+		addDictionaryNames(dictionary, doubleArrayMap.keySet());
+		addDictionaryNames(dictionary, stringArrayMap.keySet());
+		addDictionaryNames(dictionary, sectionMap.keySet());
+		for(SystemDataSaveLoad section : sectionMap.values()){
+			section.addDictionaryNames(dictionary);
+		}
+	}
+	
+	private static void addDictionaryNames(Map<String, Integer> dictionary, Set<String> dataNames){
+		for(String dataName : dataNames){
+			if(!dictionary.containsKey(dataName)){
+				dictionary.put(dataName, dictionary.size());
+			}
+		}
+	}
+	
+	protected void outputSingleData(DataOutputStream outputStream) throws IOException{
 		for(Entry<String, Boolean> booleanMapEntry : booleanMap.entrySet()){
 			outputStream.writeByte(booleanDataCode);
 			outputStream.writeUTF(booleanMapEntry.getKey());
@@ -161,47 +488,256 @@ public class SystemDataSaveLoad{
 			outputStream.writeUTF(stringMapEntry.getKey());
 			outputStream.writeUTF(stringMapEntry.getValue());
 		}
+		for(Entry<String, Long> longMapEntry : longMap.entrySet()){
+			outputStream.writeByte(longDataCode);
+			outputStream.writeUTF(longMapEntry.getKey());
+			outputStream.writeLong(longMapEntry.getValue());
+		}
 	}
 	
-	protected static void outputArrayData(DataOutputStream outputStream) throws IOException{
-		for(Entry<String, Boolean[]> booleanArrayMapEntry : booleanArrayMap.entrySet()){
+	protected void outputArrayData(DataOutputStream outputStream) throws IOException{
+		//Each array is prefixed with its length so the reader knows how many elements to parse.
+		for(Entry<String, boolean[]> booleanArrayMapEntry : booleanArrayMap.entrySet()){
+			boolean[] booleanArray = booleanArrayMapEntry.getValue();
 			outputStream.writeByte(booleanArrayDataCode);
 			outputStream.writeUTF(booleanArrayMapEntry.getKey());
-			for(Boolean data : booleanArrayMapEntry.getValue()){
-				outputStream.writeBoolean(data);
+			outputStream.writeInt(booleanArray.length);
+			byte[] rawData = new byte[booleanArray.length];
+			for(int i=0; i<booleanArray.length; ++i){
+				rawData[i] = (byte) (booleanArray[i] ? 1 : 0);
 			}
+			outputStream.write(rawData);
 		}
-		for(Entry<String, Integer[]> integerArrayMapEntry : integerArrayMap.entrySet()){
+		for(Entry<String, int[]> integerArrayMapEntry : integerArrayMap.entrySet()){
+			int[] integerArray = integerArrayMapEntry.getValue();
 			outputStream.writeByte(integerArrayDataCode);
 			outputStream.writeUTF(integerArrayMapEntry.getKey());
-			for(Integer data : integerArrayMapEntry.getValue()){
-				outputStream.writeInt(data);
-			}
+			outputStream.writeInt(integerArray.length);
+			ByteBuffer rawData = ByteBuffer.allocate(integerArray.length*Integer.BYTES);
+			rawData.asIntBuffer().put(integerArray);
+			outputStream.write(rawData.array());
 		}
-		for(Entry<String, Double[]> doubleArrayMapEntry : doubleArrayMap.entrySet()){
+		for(Entry<String, double[]> doubleArrayMapEntry : doubleArrayMap.entrySet()){
+			double[] doubleArray = doubleArrayMapEntry.getValue();
 			outputStream.writeByte(doubleArrayDataCode);
 			outputStream.writeUTF(doubleArrayMapEntry.getKey());
-			for(Double data : doubleArrayMapEntry.getValue()){
-				outputStream.writeDouble(data);
-			}
+			outputStream.writeInt(doubleArray.length);
+			ByteBuffer rawData = ByteBuffer.allocate(doubleArray.length*Double.BYTES);
+			rawData.asDoubleBuffer().put(doubleArray);
+			outputStream.write(rawData.array());
 		}
 		for(Entry<String, String[]> stringArrayMapEntry : stringArrayMap.entrySet()){
+			String[] stringArray = stringArrayMapEntry.getValue();
 			outputStream.writeByte(stringArrayDataCode);
 			outputStream.writeUTF(stringArrayMapEntry.getKey());
-			for(String data : stringArrayMapEntry.getValue()){
+			outputStream.writeInt(stringArray.length);
+			for(String data : stringArray){
 				outputStream.writeUTF(data);
 			}
 		}
 	}
 	
-	protected static void clearMaps(){
+	/**Returns the section with the passed-in name, creating it if it does not exist.*/
+	public SystemDataSaveLoad getSection(String sectionName){
+		SystemDataSaveLoad section = sectionMap.get(sectionName);
+		if(section == null){
+			section = new SystemDataSaveLoad();
+			section.registryMapping = registryMapping;
+			sectionMap.put(sectionName, section);
+		}
+		return section;
+	}
+	
+	/**Sets the mapping used to look up registered objects by their saved IDs.  Sections made after this share the mapping.
+	 * A null mapping means saved IDs are the same as the current ones, which is the default.
+	 */
+	public void setRegistryMapping(SystemDataRegistryMapping registryMapping){
+		this.registryMapping = registryMapping;
+		for(SystemDataSaveLoad section : sectionMap.values()){
+			section.setRegistryMapping(registryMapping);
+		}
+	}
+	
+	public SystemDataRegistryMapping getRegistryMapping(){
+		return registryMapping;
+	}
+	
+	/**Returns the object in the passed-in registry for the passed-in saved ID, or null if there is no such object.*/
+	public <RegistryObject extends IRegistryObject> RegistryObject getRegistryObject(ARegistry<RegistryObject> registry, int savedID){
+		return registryMapping != null ? registryMapping.getObject(registry, savedID) : registry.getById(savedID);
+	}
+	
+	/**Copies all data from the passed-in context into this context, replacing any data with the same names.
+	 * Arrays and sections are copied rather than shared, so changes to the data in either context won't affect the other.
+	 * Note that sections are replaced as a whole, not merged.
+	 */
+	public void copyDataFrom(SystemDataSaveLoad data){
+		booleanMap.putAll(data.booleanMap);
+		integerMap.putAll(data.integerMap);
+		doubleMap.putAll(data.doubleMap);
+		stringMap.putAll(data.stringMap);
+		longMap.putAll(data.longMap);
+		for(Entry<String, boolean[]> booleanArrayMapEntry : data.booleanArrayMap.entrySet()){
+			booleanArrayMap.put(booleanArrayMapEntry.getKey(), booleanArrayMapEntry.getValue().clone());
+		}
+		for(Entry<String, int[]> integerArrayMapEntry : data.integerArrayMap.entrySet()){
+			integerArrayMap.put(integerArrayMapEntry.getKey(), integerArrayMapEntry.getValue().clone());
+		}
+		for(Entry<String, double[]> doubleArrayMapEntry : data.doubleArrayMap.entrySet()){
+			doubleArrayMap.put(doubleArrayMapEntry.getKey(), doubleArrayMapEntry.getValue().clone());
+		}
+		for(Entry<String, String[]> stringArrayMapEntry : data.stringArrayMap.entrySet()){
+			stringArrayMap.put(stringArrayMapEntry.getKey(), stringArrayMapEntry.getValue().clone());
+		}
+		for(Entry<String, SystemDataSaveLoad> sectionMapEntry : data.sectionMap.entrySet()){
+			SystemDataSaveLoad section = new SystemDataSaveLoad();
+			section.registryMapping = registryMapping;
+			section.copyDataFrom(sectionMapEntry.getValue());
+			sectionMap.put(sectionMapEntry.getKey(), section);
+		}
+	}
+	
+	/**Returns true if the passed-in context holds exactly the same data as this one, including sections.*/
+	public boolean hasSameData(SystemDataSaveLoad data){
+		if(!booleanMap.equals(data.booleanMap) || !integerMap.equals(data.integerMap) || !doubleMap.equals(data.doubleMap) || !stringMap.equals(data.stringMap) || !longMap.equals(data.longMap)){
+			return false;
+		}
+		for(byte dataCode : new byte[]{booleanArrayDataCode, integerArrayDataCode, doubleArrayDataCode, stringArrayDataCode}){
+			Map<String, ?> arrayMap = getMapForCode(dataCode);
+			Map<String, ?> otherArrayMap = data.getMapForCode(dataCode);
+			if(arrayMap.size() != otherArrayMap.size()){
+				return false;
+			}
+			for(Entry<String, ?> arrayMapEntry : arrayMap.entrySet()){
+				if(!Objects.deepEquals(arrayMapEntry.getValue(), otherArrayMap.get(arrayMapEntry.getKey()))){
+					return false;
+				}
+			}
+		}
+		if(sectionMap.size() != data.sectionMap.size()){
+			return false;
+		}
+		for(Entry<String, SystemDataSaveLoad> sectionMapEntry : sectionMap.entrySet()){
+			SystemDataSaveLoad otherSection = data.sectionMap.get(sectionMapEntry.getKey());
+			if(otherSection == null || !sectionMapEntry.getValue().hasSameData(otherSection)){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**Returns the map that holds data for the passed-in data code, or null if the code is not valid.*/
+	protected Map<String, ?> getMapForCode(byte dataCode){
+		switch(dataCode){
+			case booleanDataCode: return booleanMap;
+			case integerDataCode: return integerMap;
+			case doubleDataCode: return doubleMap;
+			case stringDataCode: return stringMap;
+			case sectionDataCode: return sectionMap;
+			case longDataCode: return longMap;
+			case booleanArrayDataCode: return booleanArrayMap;
+			case integerArrayDataCode: return integerArrayMap;
+			case doubleArrayDataCode: return doubleArrayMap;
+			case stringArrayDataCode: return stringArrayMap;
+			default: return null;
+		}
+	}
+	
+	protected void clearMaps(){
 		booleanMap.clear();
 		integerMap.clear();
 		doubleMap.clear();
 		stringMap.clear();
+		longMap.clear();
 		booleanArrayMap.clear();
 		integerArrayMap.clear();
 		doubleArrayMap.clear();
 		stringArrayMap.clear();
+		sectionMap.clear();
+	}
+	
+	/**Writes an unsigned varint.  Each byte holds 7 bits of the value, with the high bit set if more bytes follow.*/
+	public static void writeVarInt(DataOutput output, int value) throws IOException{
+		while((value & ~0x7F) != 0){
+			output.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		output.writeByte(value);
+	}
+	
+	public static int readVarInt(DataInput input) throws IOException{
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7){
+			byte nextByte = input.readByte();
+			value |= (nextByte & 0x7F) << shift;
+			if(nextByte >= 0){
+				return value;
+			}
+		}
+		throw new IOException("Varint longer than 5 bytes detected when parsing data from storage!");
+	}
+	
+	/**Writes a varint with zig-zag encoding, which keeps small negative numbers as short as small positive ones.*/
+	public static void writeZigZagVarInt(DataOutput output, int value) throws IOException{
+		writeVarInt(output, (value << 1) ^ (value >> 31));
+	}
+	
+	public static int readZigZagVarInt(DataInput input) throws IOException{
+		int value = readVarInt(input);
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	/**Like {@link #writeZigZagVarInt(DataOutput, int)}, but for longs.*/
+	public static void writeZigZagVarLong(DataOutput output, long value) throws IOException{
+		writeVarLong(output, (value << 1) ^ (value >> 63));
+	}
+	
+	public static long readZigZagVarLong(DataInput input) throws IOException{
+		long value = readVarLong(input);
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	public static void writeVarLong(DataOutput output, long value) throws IOException{
+		while((value & ~0x7FL) != 0){
+			output.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		output.writeByte((int) value);
+	}
+	
+	public static long readVarLong(DataInput input) throws IOException{
+		long value = 0;
+		for(int shift = 0; shift < 70; shift += 7){
+			byte nextByte = input.readByte();
+			value |= (long) (nextByte & 0x7F) << shift;
+			if(nextByte >= 0){
+				return value;
+			}
+		}
+		throw new IOException("Varlong longer than 10 bytes detected when parsing data from storage!");
+	}
+	
+	/**Writes the passed-in booleans packed 8 to a byte.  The length is not written, so the reader needs to know it.*/
+	public static void writeBitset(DataOutput output, boolean[] values) throws IOException{
+		byte[] packedData = new byte[(values.length + 7)/8];
+		for(int i=0; i<values.length; ++i){
+			if(values[i]){
+				packedData[i >> 3] |= 1 << (i & 7);
+			}
+		}
+		output.write(packedData);
+	}
+	
+	public static boolean[] readBitset(DataInput input, int length) throws IOException{
+		if(length < 0){
+			throw new IOException("Invalid bitset length of " + length + " detected when parsing data from storage!");
+		}
+		byte[] packedData = new byte[(length + 7)/8];
+		input.readFully(packedData);
+		boolean[] values = new boolean[length];
+		for(int i=0; i<length; ++i){
+			values[i] = (packedData[i >> 3] & (1 << (i & 7))) != 0;
+		}
+		return values;
 	}
 }
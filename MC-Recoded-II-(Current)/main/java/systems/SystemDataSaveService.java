@@ -0,0 +1,298 @@
+/**
+ * 
+ */
+package systems;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * This class moves the disk I/O of saving off the calling thread.  When a save is submitted,
+ * the data in the passed-in {@link SystemDataSaveLoad} context is serialized into an in-memory
+ * snapshot buffer right away, so the caller is free to keep modifying its objects.  The snapshot
+ * is then handed to a background writer thread, which writes it to a temp file next to the target,
+ * forces it to disk, and atomically renames it over the target.  The directory is then forced to disk
+ * as well, so the rename itself survives a crash.  This means a crash mid-save will never leave a
+ * half-written file behind.
+ * <br><br>
+ * The writer processes saves in batches, forcing all temp files in a batch to disk before
+ * renaming any of them.  This keeps the number of disk syncs down when many objects are saved
+ * at once, such as during an autosave.  Snapshot buffers are pooled and re-used, and there are only
+ * a fixed number of them.  Should the writer fall behind, submitting a save will block until a buffer
+ * is free again, which keeps memory use bounded.
+ * <br><br>
+ * Note that saves to the same file are written in the order they were submitted, so the last
+ * submitted save is the one that ends up on disk.
+ * <br><br>
+ * The writer is stopped by {@link #close()}, which writes out all pending saves first.  Should the JVM
+ * exit without the service being closed, a shutdown hook closes it, so queued saves are never dropped.
+ *
+ * @author don_bruce
+ */
+public class SystemDataSaveService implements Closeable{
+	/**Queued after the last save when closing, to tell the writer to stop once everything before it is written.*/
+	private static final SnapshotBuffer shutdownMarker = new SnapshotBuffer();
+	
+	private final BlockingQueue<SnapshotBuffer> freeBuffers;
+	private final BlockingQueue<SnapshotBuffer> pendingSaves;
+	private final int maxBatchSize;
+	private final Thread writerThread;
+	private final Thread shutdownHook;
+	
+	private final Object progressLock = new Object();
+	private long submittedSaves;
+	private long completedSaves;
+	private IOException lastError;
+	private volatile boolean closed;
+	
+	/**Creates a new save service.  The number of buffers is the max number of saves that may be
+	 * queued before submitting blocks.  The batch size is the max number of saves that are synced
+	 * to disk at once.
+	 */
+	public SystemDataSaveService(int numberBuffers, int maxBatchSize){
+		this.freeBuffers = new ArrayBlockingQueue<SnapshotBuffer>(numberBuffers);
+		//One extra slot for the shutdown marker.
+		this.pendingSaves = new ArrayBlockingQueue<SnapshotBuffer>(numberBuffers + 1);
+		this.maxBatchSize = maxBatchSize;
+		for(int i=0; i<numberBuffers; ++i){
+			freeBuffers.add(new SnapshotBuffer());
+		}
+		this.writerThread = new Thread(this::runWriter, "Save Writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+		this.shutdownHook = new Thread(this::closeOnShutdown, "Save Writer Shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+	
+	/**Serializes the data in the passed-in context and queues it to be written to the passed-in file.
+	 * The context is cleared once this method returns, just like when saving to a stream.  This method
+	 * will block if all snapshot buffers are waiting to be written.
+	 */
+	public void submitSave(SystemDataSaveLoad data, Path file) throws IOException, InterruptedException{
+		if(closed){
+			throw new IllegalStateException("Attempted to submit a save to a closed save service!");
+		}
+		SnapshotBuffer buffer = freeBuffers.take();
+		boolean queued = false;
+		try{
+			buffer.reset();
+			buffer.targetFile = file;
+			data.saveDataToStream(new DataOutputStream(buffer));
+			synchronized(progressLock){
+				//Check again, as the service may have been closed while we were waiting for the buffer.
+				if(closed){
+					throw new IllegalStateException("Attempted to submit a save to a closed save service!");
+				}
+				++submittedSaves;
+				pendingSaves.add(buffer);
+				queued = true;
+			}
+		}finally{
+			//Whatever went wrong, the buffer must go back to the pool, or later saves would wait for it forever.
+			if(!queued){
+				buffer.targetFile = null;
+				freeBuffers.add(buffer);
+			}
+		}
+	}
+	
+	/**Blocks until all saves submitted before this call are on disk.  If any of those saves failed,
+	 * the error is thrown here.
+	 */
+	public void flush() throws IOException, InterruptedException{
+		synchronized(progressLock){
+			long targetSaves = submittedSaves;
+			while(completedSaves < targetSaves){
+				progressLock.wait();
+			}
+			if(lastError != null){
+				IOException error = lastError;
+				lastError = null;
+				throw error;
+			}
+		}
+	}
+	
+	/**Writes out all pending saves and stops the writer thread.  If any of those saves failed, the error is thrown here.*/
+	@Override
+	public void close() throws IOException{
+		synchronized(progressLock){
+			if(closed){
+				return;
+			}
+			closed = true;
+			pendingSaves.add(shutdownMarker);
+		}
+		if(Thread.currentThread() != shutdownHook){
+			try{
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			}catch(IllegalStateException e){
+				//The JVM is already shutting down, so the hook is running or about to, which is fine.
+			}
+		}
+		try{
+			flush();
+			writerThread.join();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void closeOnShutdown(){
+		try{
+			close();
+		}catch(IOException e){
+			//Nobody is left to report this to, so log it so the lost save is at least known.
+			System.err.println("Failed to write saves while shutting down!");
+			e.printStackTrace();
+		}
+	}
+	
+	private void runWriter(){
+		List<SnapshotBuffer> batch = new ArrayList<SnapshotBuffer>(maxBatchSize);
+		boolean stopping = false;
+		while(!stopping){
+			try{
+				batch.add(pendingSaves.take());
+			}catch(InterruptedException e){
+				//Only the shutdown marker stops the writer, so pending saves are never dropped.
+				continue;
+			}
+			pendingSaves.drainTo(batch, maxBatchSize - 1);
+			//The marker is always the last thing queued, so anything before it in the batch still gets written.
+			if(batch.remove(shutdownMarker)){
+				stopping = true;
+				if(batch.isEmpty()){
+					break;
+				}
+			}
+			
+			//Catch everything, as the writer thread dying would leave flush() and close() waiting forever.
+			IOException batchError = null;
+			try{
+				writeBatch(batch);
+			}catch(IOException e){
+				batchError = e;
+			}catch(Throwable e){
+				batchError = new IOException("Unexpected error while writing a batch of saves!", e);
+			}
+			
+			for(SnapshotBuffer buffer : batch){
+				buffer.targetFile = null;
+				freeBuffers.add(buffer);
+			}
+			synchronized(progressLock){
+				completedSaves += batch.size();
+				if(batchError != null){
+					lastError = batchError;
+				}
+				progressLock.notifyAll();
+			}
+			batch.clear();
+		}
+	}
+	
+	private static void writeBatch(List<SnapshotBuffer> batch) throws IOException{
+		//Write all the temp files first, and then sync them all at once.
+		//Renames are only done after everything is on disk.
+		Path[] tempFiles = new Path[batch.size()];
+		FileChannel[] tempChannels = new FileChannel[batch.size()];
+		boolean written = false;
+		try{
+			for(int i=0; i<batch.size(); ++i){
+				SnapshotBuffer buffer = batch.get(i);
+				Path targetDirectory = buffer.targetFile.toAbsolutePath().getParent();
+				tempFiles[i] = Files.createTempFile(targetDirectory, buffer.targetFile.getFileName().toString(), ".tmp");
+				tempChannels[i] = FileChannel.open(tempFiles[i], StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				buffer.writeTo(tempChannels[i]);
+			}
+			for(FileChannel tempChannel : tempChannels){
+				tempChannel.force(true);
+			}
+			written = true;
+		}finally{
+			if(!written){
+				for(int i=0; i<tempFiles.length; ++i){
+					if(tempChannels[i] != null){
+						tempChannels[i].close();
+					}
+					if(tempFiles[i] != null){
+						Files.deleteIfExists(tempFiles[i]);
+					}
+				}
+			}
+		}
+		
+		IOException renameError = null;
+		for(int i=0; i<batch.size(); ++i){
+			tempChannels[i].close();
+			try{
+				moveAtomically(tempFiles[i], batch.get(i).targetFile);
+			}catch(IOException e){
+				Files.deleteIfExists(tempFiles[i]);
+				renameError = e;
+			}
+		}
+		if(renameError != null){
+			throw renameError;
+		}
+	}
+	
+	/**Moves the source file over the target file, and forces the directory to disk so the move is durable.
+	 * Falls back to a non-atomic replace on filesystems that can't do atomic moves.
+	 */
+	protected static void moveAtomically(Path sourceFile, Path targetFile) throws IOException{
+		try{
+			Files.move(sourceFile, targetFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}catch(AtomicMoveNotSupportedException e){
+			Files.move(sourceFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+		syncDirectory(targetFile.toAbsolutePath().getParent());
+	}
+	
+	/**Forces the passed-in directory to disk, so renames and deletes in it survive a crash.
+	 * Some platforms, such as Windows, can't open directories at all, and don't need this, so failing to open one is ignored.
+	 */
+	protected static void syncDirectory(Path directory) throws IOException{
+		FileChannel directoryChannel;
+		try{
+			directoryChannel = FileChannel.open(directory, StandardOpenOption.READ);
+		}catch(IOException e){
+			return;
+		}
+		try{
+			directoryChannel.force(true);
+		}finally{
+			directoryChannel.close();
+		}
+	}
+	
+	/**Re-usable buffer that holds a serialized save until it is written.*/
+	private static class SnapshotBuffer extends ByteArrayOutputStream{
+		private Path targetFile;
+		
+		private SnapshotBuffer(){
+			super(4096);
+		}
+		
+		private void writeTo(FileChannel channel) throws IOException{
+			ByteBuffer data = ByteBuffer.wrap(buf, 0, count);
+			while(data.hasRemaining()){
+				channel.write(data);
+			}
+		}
+	}
+}
@@ -0,0 +1,461 @@
+/**
+ * 
+ */
+package systems;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import capabilities.CapabilityEnergyContainer;
+import components.Energy;
+import rendering.interfaces.IEnergyConduit;
+import rendering.interfaces.IEnergyProvider;
+
+/**
+ * This class moves energy through networks of connected {@link IEnergyConduit}s.  Rather than each conduit
+ * passing energy to its neighbours, connected conduits are grouped into a single network by a
+ * {@link SystemNetworkGraph}, and each network moves energy from all its providers to all its consumers
+ * in one pass per tick.  Providers and consumers are energy containers attached to a conduit, such as
+ * the container of a generator or a machine.  A container may be both, as is the case with batteries.
+ * <br><br>
+ * Each network has a buffer.  Every tick, providers are drained into the buffer, at most by their output
+ * rate, until it is full, and the buffer is then shared between consumers.  Should the buffer not hold
+ * enough for all consumers, each gets a share matching what it asked for.  Whatever is left stays in the
+ * buffer for the next tick.  The buffer holds one tick worth of output from the providers of the network,
+ * so it is sized automatically as providers come and go.  Each network carries a single energy type, which
+ * is the type of the first provider that fills it.  Providers of other types are skipped until it's empty.
+ * <br><br>
+ * When conduits are added or removed, networks are merged or split, and their buffers and containers
+ * are merged or split along with them.  When a network splits, its buffer is split by how much buffer
+ * each part's providers need.  When two networks with buffers of different energy types merge, the larger buffer
+ * is kept and the smaller one is lost, as a buffer can only hold one type.  Energy in the buffer of a removed
+ * single-conduit network is also lost.
+ * <br><br>
+ * Providers may be attached along with the {@link IEnergyProvider} they belong to.  If so, the max rate of that
+ * provider limits how much energy may safely pass each conduit it feeds, and its potency is how dangerous it is
+ * when that limit is broken.  After moving energy, each tick works out the load on every conduit and tells the
+ * {@link OverloadListener} about any conduit over its limit.  Rather than walking every path from every provider
+ * to every consumer, each network is split into trees, one per provider, with each conduit going to the provider
+ * it's closest to.  This is how the energy is assumed to flow.  The energy each consumer took is then added up from
+ * the leaves to the roots in one pass, giving the load on every conduit in time linear to the network size.  The trees
+ * only change when the network does, so they are kept between ticks.  To keep large grids from stalling the tick,
+ * loads are only worked out for as many networks as fit in the flow budget, with the rest done on the next ticks,
+ * in turn.  At least one network is always done per tick, so every network is checked eventually.
+ * <br><br>
+ * This class is not thread-safe.  Changes and ticks should be done from the same thread.
+ *
+ * @author don_bruce
+ */
+public class SystemEnergyNetwork{
+	/**Default time the flow solver may take per tick, in nanoseconds.  This is a twentieth of a 20 TPS tick.*/
+	public static final long defaultFlowBudget = 2500000;
+	
+	private final SystemNetworkGraph<EnergyNetwork> graph;
+	private final Map<Long, IEnergyConduit> conduits = new HashMap<Long, IEnergyConduit>();
+	private final Set<EnergyNetwork> networks = new LinkedHashSet<EnergyNetwork>();
+	/**Networks in the order the flow solver goes through them.  Removed networks are dropped when they come up.*/
+	private final ArrayDeque<EnergyNetwork> flowQueue = new ArrayDeque<EnergyNetwork>();
+	private OverloadListener overloadListener;
+	private long flowBudget = defaultFlowBudget;
+	/**Scratch space for building flow trees, indexed by node index.*/
+	private int[] flowMarks = new int[0];
+	private int[] flowPositions = new int[0];
+	private int flowMark;
+	/**Scratch space for the load on each conduit of the network being solved, indexed by tree position.*/
+	private long[] flowLoads = new long[0];
+	
+	public SystemEnergyNetwork(){
+		this.graph = new SystemNetworkGraph<EnergyNetwork>(new EnergyNetworkHandler());
+	}
+	
+	/**Adds a conduit at the passed-in node, connected to whichever of the passed-in neighbours are conduits.*/
+	public void addConduit(long nodeKey, IEnergyConduit conduit, long... neighbourKeys){
+		conduits.put(nodeKey, conduit);
+		graph.addNode(nodeKey, neighbourKeys).flowDirty = true;
+	}
+	
+	/**Removes the conduit at the passed-in node, along with any containers attached to it.*/
+	public void removeConduit(long nodeKey){
+		EnergyNetwork network = graph.getNetwork(nodeKey);
+		if(network != null){
+			network.removeEndpoints(nodeKey);
+			network.flowDirty = true;
+			graph.removeNode(nodeKey);
+			conduits.remove(nodeKey);
+		}
+	}
+	
+	/**Returns the conduit at the passed-in node, or null if there's no conduit there.*/
+	public IEnergyConduit getConduit(long nodeKey){
+		return conduits.get(nodeKey);
+	}
+	
+	/**Attaches a container that supplies energy to the network at the passed-in conduit.  Conduits fed by this container have no load limit.*/
+	public void addProvider(long nodeKey, CapabilityEnergyContainer container){
+		addProvider(nodeKey, container, null);
+	}
+	
+	/**Attaches a container that supplies energy to the network at the passed-in conduit, limiting the load of the conduits
+	 * it feeds to the max rate of the passed-in provider.
+	 */
+	public void addProvider(long nodeKey, CapabilityEnergyContainer container, IEnergyProvider provider){
+		EnergyNetwork network = getNetworkOfConduit(nodeKey);
+		network.providers.add(new Endpoint(nodeKey, container, provider));
+		network.flowDirty = true;
+	}
+	
+	/**Attaches a container that takes energy from the network at the passed-in conduit.*/
+	public void addConsumer(long nodeKey, CapabilityEnergyContainer container){
+		EnergyNetwork network = getNetworkOfConduit(nodeKey);
+		network.consumers.add(new Endpoint(nodeKey, container, null));
+		network.flowDirty = true;
+	}
+	
+	/**Detaches the passed-in container from the conduit at the passed-in node, as both a provider and a consumer.*/
+	public void removeContainer(long nodeKey, CapabilityEnergyContainer container){
+		EnergyNetwork network = graph.getNetwork(nodeKey);
+		if(network != null){
+			network.removeEndpoint(nodeKey, container);
+			network.flowDirty = true;
+		}
+	}
+	
+	/**Returns the amount of energy in the buffer of the network the passed-in conduit is in, or 0 if there's no conduit there.*/
+	public long getBufferedEnergy(long nodeKey){
+		EnergyNetwork network = graph.getNetwork(nodeKey);
+		return network != null ? network.bufferedEnergy : 0;
+	}
+	
+	/**Returns the number of networks.*/
+	public int getNetworkCount(){
+		return networks.size();
+	}
+	
+	/**Sets the listener told about overloaded conduits.  Loads are only worked out while there is a listener.*/
+	public void setOverloadListener(OverloadListener overloadListener){
+		this.overloadListener = overloadListener;
+	}
+	
+	/**Sets how long working out loads may take per tick, in nanoseconds.*/
+	public void setFlowBudget(long flowBudget){
+		this.flowBudget = flowBudget;
+	}
+	
+	/**Moves energy in all networks, and then checks conduit loads for as many networks as the flow budget allows.  Call this once per tick.*/
+	public void tick(){
+		for(EnergyNetwork network : networks){
+			network.tick();
+		}
+		
+		//Go through the flow queue even without a listener, so removed networks are dropped from it.
+		long deadline = System.nanoTime() + flowBudget;
+		for(int networksLeft = flowQueue.size(); networksLeft > 0; --networksLeft){
+			EnergyNetwork network = flowQueue.poll();
+			if(!network.removed){
+				flowQueue.add(network);
+				if(overloadListener != null){
+					solveFlow(network);
+					if(System.nanoTime() - deadline >= 0){
+						break;
+					}
+				}
+			}
+		}
+	}
+	
+	/**Works out the load on every conduit of the passed-in network from the energy its consumers took last tick,
+	 * and tells the listener about any conduit over its limit.
+	 */
+	private void solveFlow(EnergyNetwork network){
+		if(network.providers.isEmpty()){
+			return;
+		}
+		if(network.flowDirty){
+			buildFlowTrees(network);
+		}
+		int nodeCount = network.flowNodeCount;
+		if(flowLoads.length < nodeCount){
+			flowLoads = new long[nodeCount];
+		}
+		final long[] loads = flowLoads;
+		final int[] parents = network.flowParents;
+		Arrays.fill(loads, 0, nodeCount, 0);
+		for(Endpoint consumer : network.consumers){
+			loads[consumer.flowPosition] += consumer.lastTransfer;
+		}
+		
+		//Trees are in walk order, so every conduit comes after its parent.  Going backwards adds up all children before their parent.
+		for(int i=nodeCount - 1; i>0; --i){
+			if(parents[i] != -1){
+				loads[parents[i]] += loads[i];
+			}
+		}
+		for(int i=0; i<nodeCount; ++i){
+			IEnergyProvider provider = network.flowSources[i].provider;
+			if(provider != null && loads[i] > provider.getMaxRate()){
+				overloadListener.onConduitOverloaded(graph.getNodeKeyOfIndex(network.flowOrder[i]), loads[i], provider.getMaxRate(), provider.getPotency());
+			}
+		}
+	}
+	
+	/**Splits the passed-in network into one tree per provider by walking out from all providers at once.*/
+	private void buildFlowTrees(EnergyNetwork network){
+		int indexLimit = graph.getIndexLimit();
+		if(flowMarks.length < indexLimit){
+			flowMarks = new int[indexLimit];
+			flowPositions = new int[indexLimit];
+		}
+		int networkSize = graph.getNetworkSize(network.providers.get(0).nodeKey);
+		if(network.flowOrder.length < networkSize){
+			network.flowOrder = new int[networkSize];
+			network.flowParents = new int[networkSize];
+			network.flowSources = new Endpoint[networkSize];
+		}
+		final int[] order = network.flowOrder;
+		final int[] parents = network.flowParents;
+		final Endpoint[] sources = network.flowSources;
+		int mark = ++flowMark;
+		int nodeCount = 0;
+		for(Endpoint provider : network.providers){
+			int index = graph.getNodeIndex(provider.nodeKey);
+			if(flowMarks[index] != mark){
+				flowMarks[index] = mark;
+				flowPositions[index] = nodeCount;
+				order[nodeCount] = index;
+				parents[nodeCount] = -1;
+				sources[nodeCount++] = provider;
+			}
+		}
+		for(int position=0; position<nodeCount; ++position){
+			int index = order[position];
+			for(int i=0; i<graph.getNeighbourCount(index); ++i){
+				int neighbourIndex = graph.getNeighbourIndex(index, i);
+				if(flowMarks[neighbourIndex] != mark){
+					flowMarks[neighbourIndex] = mark;
+					flowPositions[neighbourIndex] = nodeCount;
+					order[nodeCount] = neighbourIndex;
+					parents[nodeCount] = position;
+					sources[nodeCount++] = sources[position];
+				}
+			}
+		}
+		//Clear sources past the end so removed providers can be collected.
+		Arrays.fill(sources, nodeCount, sources.length, null);
+		for(Endpoint consumer : network.consumers){
+			consumer.flowPosition = flowPositions[graph.getNodeIndex(consumer.nodeKey)];
+		}
+		network.flowNodeCount = nodeCount;
+		network.flowDirty = false;
+	}
+	
+	private EnergyNetwork getNetworkOfConduit(long nodeKey){
+		EnergyNetwork network = graph.getNetwork(nodeKey);
+		if(network == null){
+			throw new IllegalArgumentException("Attempted to attach a container to node " + nodeKey + ", but there's no conduit there!");
+		}
+		return network;
+	}
+	
+	/**A container attached to a conduit.*/
+	private static class Endpoint{
+		private final long nodeKey;
+		private final CapabilityEnergyContainer container;
+		/**The provider this container belongs to, if it's a provider and one was given.*/
+		private final IEnergyProvider provider;
+		/**Energy moved through this endpoint last tick.*/
+		private int lastTransfer;
+		/**Position of this endpoint's conduit in the flow trees of its network.*/
+		private int flowPosition;
+		
+		private Endpoint(long nodeKey, CapabilityEnergyContainer container, IEnergyProvider provider){
+			this.nodeKey = nodeKey;
+			this.container = container;
+			this.provider = provider;
+		}
+	}
+	
+	/**The state of a single network.*/
+	private static class EnergyNetwork{
+		private final List<Endpoint> providers = new ArrayList<Endpoint>();
+		private final List<Endpoint> consumers = new ArrayList<Endpoint>();
+		private Energy bufferedEnergyType;
+		private long bufferedEnergy;
+		/**Scratch space for the demand of each consumer, kept between ticks to avoid allocating.*/
+		private int[] consumerDemands = new int[0];
+		/**True once this network has been merged into another or lost its last conduit.*/
+		private boolean removed;
+		/**True if the conduits or endpoints changed since the flow trees were built.*/
+		private boolean flowDirty = true;
+		/**Node indexes of the conduits in the flow trees, in walk order.*/
+		private int[] flowOrder = new int[0];
+		/**Position of the parent of each conduit in the flow trees, or -1 for conduits providers are attached to.*/
+		private int[] flowParents = new int[0];
+		/**Provider at the root of each conduit's tree.*/
+		private Endpoint[] flowSources = new Endpoint[0];
+		private int flowNodeCount;
+		
+		private long getBufferCapacity(){
+			long bufferCapacity = 0;
+			for(Endpoint provider : providers){
+				bufferCapacity += provider.container.getEnergyOutputRate(null);
+			}
+			return bufferCapacity;
+		}
+		
+		private void tick(){
+			for(Endpoint provider : providers){
+				provider.lastTransfer = 0;
+			}
+			for(Endpoint consumer : consumers){
+				consumer.lastTransfer = 0;
+			}
+			
+			//Drain providers into the buffer.
+			long bufferSpace = getBufferCapacity() - bufferedEnergy;
+			for(int i=0; i<providers.size() && bufferSpace > 0; ++i){
+				Endpoint providerEndpoint = providers.get(i);
+				CapabilityEnergyContainer provider = providerEndpoint.container;
+				Energy providerEnergy = provider.getEnergy();
+				if(providerEnergy != null && (bufferedEnergyType == null || bufferedEnergy == 0 || providerEnergy.equals(bufferedEnergyType))){
+					int amountDrained = provider.drainContainer(providerEnergy, (int) Math.min(provider.getEnergyOutputRate(null), bufferSpace));
+					if(amountDrained > 0){
+						providerEndpoint.lastTransfer = amountDrained;
+						bufferedEnergyType = providerEnergy;
+						bufferedEnergy += amountDrained;
+						bufferSpace -= amountDrained;
+					}
+				}
+			}
+			if(bufferedEnergy == 0 || consumers.isEmpty()){
+				return;
+			}
+			
+			//Work out how much each consumer wants, then share out the buffer in one pass.
+			if(consumerDemands.length < consumers.size()){
+				consumerDemands = new int[consumers.size()];
+			}
+			long totalDemand = 0;
+			for(int i=0; i<consumers.size(); ++i){
+				CapabilityEnergyContainer consumer = consumers.get(i).container;
+				int demand = bufferedEnergyType.equals(consumer.getEnergy()) ? Math.max(Math.min(consumer.getEnergyInputRate(null), consumer.getMaxEnergyLevel() - consumer.getCurrentEnergyLevel()), 0) : 0;
+				consumerDemands[i] = demand;
+				totalDemand += demand;
+			}
+			if(totalDemand == 0){
+				return;
+			}
+			long energyToShare = Math.min(bufferedEnergy, totalDemand);
+			for(int i=0; i<consumers.size(); ++i){
+				if(consumerDemands[i] > 0){
+					Endpoint consumer = consumers.get(i);
+					int share = (int) (energyToShare*consumerDemands[i]/totalDemand);
+					consumer.lastTransfer = consumer.container.fillContainer(bufferedEnergyType, share);
+					bufferedEnergy -= consumer.lastTransfer;
+				}
+			}
+		}
+		
+		private void removeEndpoints(long nodeKey){
+			providers.removeIf(endpoint -> endpoint.nodeKey == nodeKey);
+			consumers.removeIf(endpoint -> endpoint.nodeKey == nodeKey);
+			trimBuffer();
+		}
+		
+		private void removeEndpoint(long nodeKey, CapabilityEnergyContainer container){
+			providers.removeIf(endpoint -> endpoint.nodeKey == nodeKey && endpoint.container == container);
+			consumers.removeIf(endpoint -> endpoint.nodeKey == nodeKey && endpoint.container == container);
+			trimBuffer();
+		}
+		
+		/**Caps the buffer to its capacity after providers are removed.  Any energy over that is lost.*/
+		private void trimBuffer(){
+			bufferedEnergy = Math.min(bufferedEnergy, getBufferCapacity());
+		}
+	}
+	
+	/**Keeps the network objects in step with the graph.*/
+	private class EnergyNetworkHandler implements SystemNetworkGraph.NetworkHandler<EnergyNetwork>{
+		@Override
+		public EnergyNetwork createNetwork(){
+			EnergyNetwork network = new EnergyNetwork();
+			networks.add(network);
+			flowQueue.add(network);
+			return network;
+		}
+		
+		@Override
+		public void mergeNetworks(EnergyNetwork keptNetwork, EnergyNetwork mergedNetwork){
+			keptNetwork.providers.addAll(mergedNetwork.providers);
+			keptNetwork.consumers.addAll(mergedNetwork.consumers);
+			if(keptNetwork.bufferedEnergy == 0){
+				keptNetwork.bufferedEnergyType = mergedNetwork.bufferedEnergyType;
+				keptNetwork.bufferedEnergy = mergedNetwork.bufferedEnergy;
+			}else if(mergedNetwork.bufferedEnergy != 0){
+				if(keptNetwork.bufferedEnergyType.equals(mergedNetwork.bufferedEnergyType)){
+					keptNetwork.bufferedEnergy += mergedNetwork.bufferedEnergy;
+				}else if(mergedNetwork.bufferedEnergy > keptNetwork.bufferedEnergy){
+					//A buffer can only hold one type, so keep whichever buffer holds more.
+					keptNetwork.bufferedEnergyType = mergedNetwork.bufferedEnergyType;
+					keptNetwork.bufferedEnergy = mergedNetwork.bufferedEnergy;
+				}
+			}
+			keptNetwork.flowDirty = true;
+			mergedNetwork.removed = true;
+			networks.remove(mergedNetwork);
+		}
+		
+		@Override
+		public void splitNetwork(EnergyNetwork oldNetwork, List<EnergyNetwork> newNetworks){
+			long oldCapacity = oldNetwork.getBufferCapacity();
+			moveEndpoints(oldNetwork.providers, oldNetwork);
+			moveEndpoints(oldNetwork.consumers, oldNetwork);
+			
+			//Split the buffer by how much of the old capacity each part has.
+			long oldBufferedEnergy = oldNetwork.bufferedEnergy;
+			if(oldCapacity > 0){
+				for(EnergyNetwork newNetwork : newNetworks){
+					newNetwork.bufferedEnergyType = oldNetwork.bufferedEnergyType;
+					newNetwork.bufferedEnergy = oldBufferedEnergy*newNetwork.getBufferCapacity()/oldCapacity;
+					oldNetwork.bufferedEnergy -= newNetwork.bufferedEnergy;
+				}
+			}
+			oldNetwork.trimBuffer();
+			oldNetwork.flowDirty = true;
+		}
+		
+		@Override
+		public void removeNetwork(EnergyNetwork network){
+			network.removed = true;
+			networks.remove(network);
+		}
+		
+		/**Moves endpoints that are no longer on the old network's conduits to the network they're on now.*/
+		private void moveEndpoints(List<Endpoint> endpoints, EnergyNetwork oldNetwork){
+			for(Iterator<Endpoint> iterator = endpoints.iterator(); iterator.hasNext();){
+				Endpoint endpoint = iterator.next();
+				EnergyNetwork currentNetwork = graph.getNetwork(endpoint.nodeKey);
+				if(currentNetwork != oldNetwork){
+					iterator.remove();
+					(endpoints == oldNetwork.providers ? currentNetwork.providers : currentNetwork.consumers).add(endpoint);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Told about conduits carrying more energy than the provider feeding them can safely pass.
+	 */
+	public static interface OverloadListener{
+		/**Called for each overloaded conduit when its network's loads are worked out.  The potency is that of the provider
+		 * feeding the conduit, for deciding how bad the overload is, be it a fire, a blackout, or a shock to anyone touching it.
+		 */
+		public void onConduitOverloaded(long nodeKey, long load, int maxRate, int potency);
+	}
+}
@@ -0,0 +1,264 @@
+/**
+ * 
+ */
+package systems;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import capabilities.CapabilityFluidContainer;
+import components.Fluid;
+
+/**
+ * This class moves fluid through networks of connected pipes and tanks.  Like {@link SystemEnergyNetwork},
+ * connected nodes are grouped into networks by a {@link SystemNetworkGraph}, and fluid is moved for a whole
+ * network at once rather than pipe by pipe.  Pipes are only nodes of the graph and hold no fluid of their own,
+ * so a large refinery has no objects per pipe at all.  Tanks, and anything else with a {@link CapabilityFluidContainer},
+ * are attached to a node, which may be a pipe next to them or a node of their own.
+ * <br><br>
+ * Each tick, every network levels out its containers, moving fluid from containers fuller than the network
+ * to ones emptier than it, until all are equally full.  How much may leave or enter a container in a tick
+ * is capped by its output and input rates, and all flow is slowed by the viscosity of the fluid, so water
+ * levels out quickly while thick fluids creep.  Moved fluid keeps the temp of the containers it came from.  All this is done in one batched pass over arrays kept per network.
+ * Each network carries a single fluid, which is the fluid of the first container holding any.  Containers with
+ * other fluids, or that can't hold the network's fluid, are left alone.
+ * <br><br>
+ * This class is not thread-safe.  Changes and ticks should be done from the same thread.
+ *
+ * @author don_bruce
+ */
+public class SystemFluidNetwork{
+	private final SystemNetworkGraph<FluidNetwork> graph;
+	private final Set<FluidNetwork> networks = new LinkedHashSet<FluidNetwork>();
+	/**Scratch space for how much each container of the network being ticked should give or take.*/
+	private int[] flows = new int[0];
+	
+	public SystemFluidNetwork(){
+		this.graph = new SystemNetworkGraph<FluidNetwork>(new FluidNetworkHandler());
+	}
+	
+	/**Adds a pipe or tank at the passed-in node, connected to whichever of the passed-in neighbours are in a network.*/
+	public void addNode(long nodeKey, long... neighbourKeys){
+		graph.addNode(nodeKey, neighbourKeys);
+	}
+	
+	/**Removes the pipe or tank at the passed-in node, along with any containers attached to it.*/
+	public void removeNode(long nodeKey){
+		FluidNetwork network = graph.getNetwork(nodeKey);
+		if(network != null){
+			for(int i=network.containerCount - 1; i>=0; --i){
+				if(network.containerNodes[i] == nodeKey){
+					network.removeContainer(i);
+				}
+			}
+			graph.removeNode(nodeKey);
+		}
+	}
+	
+	/**Attaches a container to the network at the passed-in node.*/
+	public void addContainer(long nodeKey, CapabilityFluidContainer container){
+		FluidNetwork network = graph.getNetwork(nodeKey);
+		if(network == null){
+			throw new IllegalArgumentException("Attempted to attach a container to node " + nodeKey + ", but there's no pipe or tank there!");
+		}
+		network.addContainer(nodeKey, container);
+	}
+	
+	/**Detaches the passed-in container from the passed-in node.*/
+	public void removeContainer(long nodeKey, CapabilityFluidContainer container){
+		FluidNetwork network = graph.getNetwork(nodeKey);
+		if(network != null){
+			for(int i=0; i<network.containerCount; ++i){
+				if(network.containerNodes[i] == nodeKey && network.containers[i] == container){
+					network.removeContainer(i);
+					return;
+				}
+			}
+		}
+	}
+	
+	/**Returns the number of networks.*/
+	public int getNetworkCount(){
+		return networks.size();
+	}
+	
+	/**Moves fluid in all networks.  Call this once per tick.*/
+	public void tick(){
+		for(FluidNetwork network : networks){
+			if(network.containerCount > 1){
+				tickNetwork(network);
+			}
+		}
+	}
+	
+	private void tickNetwork(FluidNetwork network){
+		final CapabilityFluidContainer[] containers = network.containers;
+		final int containerCount = network.containerCount;
+		Fluid fluid = null;
+		for(int i=0; i<containerCount && fluid == null; ++i){
+			if(containers[i].getCurrentFluidLevel() > 0){
+				fluid = containers[i].getFluid();
+			}
+		}
+		if(fluid == null){
+			return;
+		}
+		
+		//Add up the fluid and space of all containers that can take part.
+		if(flows.length < containerCount){
+			flows = new int[containerCount];
+		}
+		final int[] flows = this.flows;
+		long totalLevel = 0;
+		long totalCapacity = 0;
+		for(int i=0; i<containerCount; ++i){
+			CapabilityFluidContainer container = containers[i];
+			Fluid containerFluid = container.getFluid();
+			if(containerFluid == null ? container.isFluidValid(fluid) : containerFluid.equals(fluid)){
+				totalLevel += container.getCurrentFluidLevel();
+				totalCapacity += container.getMaxFluidLevel();
+				flows[i] = 0;
+			}else{
+				flows[i] = Integer.MIN_VALUE;
+			}
+		}
+		if(totalCapacity == 0){
+			return;
+		}
+		
+		//Work out how far each container is from the level of the network, capped by its rates and slowed by viscosity.
+		//Positive flows give fluid, negative flows take it.
+		float flowFactor = Math.max(0, Math.min(1, 1 - fluid.defaultViscosity));
+		long totalGiven = 0;
+		long totalTaken = 0;
+		for(int i=0; i<containerCount; ++i){
+			if(flows[i] != Integer.MIN_VALUE){
+				CapabilityFluidContainer container = containers[i];
+				long targetLevel = container.getMaxFluidLevel()*totalLevel/totalCapacity;
+				long difference = container.getCurrentFluidLevel() - targetLevel;
+				if(difference > 0){
+					flows[i] = (int) (Math.min(difference, container.getFluidOutputRate(null))*flowFactor);
+					totalGiven += flows[i];
+				}else if(difference < 0){
+					flows[i] = -(int) (Math.min(-difference, container.getFluidInputRate(null))*flowFactor);
+					totalTaken -= flows[i];
+				}
+			}
+		}
+		long totalToMove = Math.min(totalGiven, totalTaken);
+		if(totalToMove == 0){
+			return;
+		}
+		
+		//Work out how much each giver can really give of its share.  Positive flows are now exact amounts.
+		//Also mix the temps of the givers by how much each gives, as that's the temp of the fluid that moves.
+		long totalAvailable = 0;
+		long totalTemp = 0;
+		for(int i=0; i<containerCount; ++i){
+			if(flows[i] > 0){
+				flows[i] = containers[i].drainContainer(fluid, (int) (flows[i]*totalToMove/totalGiven), true);
+				totalAvailable += flows[i];
+				totalTemp += (long) containers[i].getFluidTemp()*flows[i];
+			}
+		}
+		if(totalAvailable == 0){
+			return;
+		}
+		int fillTemp = (int) (totalTemp/totalAvailable);
+		
+		//Fill the takers first, then drain exactly what was filled from the givers, so no fluid is made or lost.
+		//Each fill is taken off the flow of its taker, so negative flows become the room left under its input rate.
+		long leftToFill = totalAvailable;
+		for(int i=0; i<containerCount && leftToFill > 0; ++i){
+			if(flows[i] < 0 && flows[i] != Integer.MIN_VALUE){
+				int amountFilled = containers[i].fillContainer(fluid, (int) Math.min(-flows[i]*totalAvailable/totalTaken, leftToFill), fillTemp, false);
+				flows[i] += amountFilled;
+				leftToFill -= amountFilled;
+			}
+		}
+		//Shares are rounded down, so hand out what's left to anyone with room under their input rate.
+		for(int i=0; i<containerCount && leftToFill > 0; ++i){
+			if(flows[i] < 0 && flows[i] != Integer.MIN_VALUE){
+				int amountFilled = containers[i].fillContainer(fluid, (int) Math.min(-flows[i], leftToFill), fillTemp, false);
+				flows[i] += amountFilled;
+				leftToFill -= amountFilled;
+			}
+		}
+		long totalFilled = totalAvailable - leftToFill;
+		
+		//Same for draining.  Givers were checked above, so between them they can always give all that was filled.
+		long leftToDrain = totalFilled;
+		for(int i=0; i<containerCount && leftToDrain > 0; ++i){
+			if(flows[i] > 0){
+				int amountDrained = containers[i].drainContainer(fluid, (int) Math.min(flows[i]*totalFilled/totalAvailable, leftToDrain));
+				flows[i] -= amountDrained;
+				leftToDrain -= amountDrained;
+			}
+		}
+		for(int i=0; i<containerCount && leftToDrain > 0; ++i){
+			if(flows[i] > 0){
+				leftToDrain -= containers[i].drainContainer(fluid, (int) Math.min(flows[i], leftToDrain));
+			}
+		}
+	}
+	
+	/**The containers of a single network, kept in parallel arrays.*/
+	private static class FluidNetwork{
+		private CapabilityFluidContainer[] containers = new CapabilityFluidContainer[4];
+		private long[] containerNodes = new long[4];
+		private int containerCount;
+		
+		private void addContainer(long nodeKey, CapabilityFluidContainer container){
+			if(containerCount == containers.length){
+				containers = Arrays.copyOf(containers, containerCount*2);
+				containerNodes = Arrays.copyOf(containerNodes, containerCount*2);
+			}
+			containers[containerCount] = container;
+			containerNodes[containerCount++] = nodeKey;
+		}
+		
+		/**Removes the container at the passed-in position by moving the last container into its place.*/
+		private void removeContainer(int position){
+			--containerCount;
+			containers[position] = containers[containerCount];
+			containerNodes[position] = containerNodes[containerCount];
+			containers[containerCount] = null;
+		}
+	}
+	
+	/**Keeps the network objects in step with the graph.*/
+	private class FluidNetworkHandler implements SystemNetworkGraph.NetworkHandler<FluidNetwork>{
+		@Override
+		public FluidNetwork createNetwork(){
+			FluidNetwork network = new FluidNetwork();
+			networks.add(network);
+			return network;
+		}
+		
+		@Override
+		public void mergeNetworks(FluidNetwork keptNetwork, FluidNetwork mergedNetwork){
+			for(int i=0; i<mergedNetwork.containerCount; ++i){
+				keptNetwork.addContainer(mergedNetwork.containerNodes[i], mergedNetwork.containers[i]);
+			}
+			networks.remove(mergedNetwork);
+		}
+		
+		@Override
+		public void splitNetwork(FluidNetwork oldNetwork, List<FluidNetwork> newNetworks){
+			for(int i=oldNetwork.containerCount - 1; i>=0; --i){
+				FluidNetwork currentNetwork = graph.getNetwork(oldNetwork.containerNodes[i]);
+				if(currentNetwork != oldNetwork){
+					currentNetwork.addContainer(oldNetwork.containerNodes[i], oldNetwork.containers[i]);
+					oldNetwork.removeContainer(i);
+				}
+			}
+		}
+		
+		@Override
+		public void removeNetwork(FluidNetwork network){
+			networks.remove(network);
+		}
+	}
+}
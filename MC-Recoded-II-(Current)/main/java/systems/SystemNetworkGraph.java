@@ -0,0 +1,332 @@
+/**
+ * 
+ */
+package systems;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps track of which nodes, such as conduits or pipes, are connected to each other,
+ * and groups connected nodes into networks.  Each network has an object of the passed-in type
+ * which holds whatever the system using this graph needs per network, like a buffer.  Nodes are
+ * identified by a long key, normally made from their position with {@link #getNodeKey(int, int, int)}.
+ * <br><br>
+ * Networks are tracked with a union-find structure.  Adding a node or connection joins networks
+ * in near-constant time, with the larger network kept and the smaller merged into it.  Removing
+ * a node may split its network, which union-find can't undo, so only the nodes of that one network
+ * are walked again to find the parts.  All other networks are left alone.  The {@link NetworkHandler}
+ * is told about every network that is made, merged, split, or removed, so it can keep its network
+ * objects in step.
+ * <br><br>
+ * This class is not thread-safe.  Topology changes and lookups should be done from the same thread.
+ *
+ * @author don_bruce
+ */
+public class SystemNetworkGraph<NetworkType>{
+	private final NetworkHandler<NetworkType> handler;
+	private final Map<Long, Integer> nodeIndexes = new HashMap<Long, Integer>();
+	/**Parent of each node in the union-find tree.  Roots are their own parent.*/
+	private int[] parents = new int[16];
+	/**Number of nodes under each root.  Only valid for roots.*/
+	private int[] sizes = new int[16];
+	/**Network object of each root.  Only valid for roots.*/
+	private Object[] networks = new Object[16];
+	/**Key of each node, so walks over indexes can say which nodes they found.*/
+	private long[] nodeKeys = new long[16];
+	private int[][] neighbours = new int[16][];
+	private int[] neighbourCounts = new int[16];
+	/**Marks of the last walk that visited each node, so walks don't need to clear anything.*/
+	private int[] visitMarks = new int[16];
+	private int visitMark;
+	private int nodeCount;
+	/**Number of indexes ever handed out.  Indexes past this have never been used.*/
+	private int indexCount;
+	private int[] freeIndexes = new int[16];
+	private int freeIndexCount;
+	
+	public SystemNetworkGraph(NetworkHandler<NetworkType> handler){
+		this.handler = handler;
+	}
+	
+	/**Returns the node key for the passed-in position.  Supports positions within +/-2^20 on each axis.*/
+	public static long getNodeKey(int x, int y, int z){
+		return ((long) (x & 0x1FFFFF) << 42) | ((long) (y & 0x1FFFFF) << 21) | (z & 0x1FFFFF);
+	}
+	
+	/**Returns true if a node with the passed-in key is in this graph.*/
+	public boolean hasNode(long nodeKey){
+		return nodeIndexes.containsKey(nodeKey);
+	}
+	
+	/**Adds a node to this graph, connected to whichever of the passed-in neighbours are in this graph.
+	 * Returns the network the node ended up in.  Adding a node that already exists just adds the connections.
+	 */
+	public NetworkType addNode(long nodeKey, long... neighbourKeys){
+		Integer existingIndex = nodeIndexes.get(nodeKey);
+		int index;
+		if(existingIndex != null){
+			index = existingIndex;
+		}else{
+			index = allocateIndex();
+			nodeIndexes.put(nodeKey, index);
+			nodeKeys[index] = nodeKey;
+			parents[index] = index;
+			sizes[index] = 1;
+			networks[index] = handler.createNetwork();
+			neighbourCounts[index] = 0;
+		}
+		for(long neighbourKey : neighbourKeys){
+			Integer neighbourIndex = nodeIndexes.get(neighbourKey);
+			if(neighbourIndex != null){
+				connect(index, neighbourIndex);
+			}
+		}
+		return getNetworkOfIndex(index);
+	}
+	
+	/**Connects the two passed-in nodes.  Both must already be in this graph.*/
+	public void connectNodes(long nodeKey, long otherNodeKey){
+		connect(getIndex(nodeKey), getIndex(otherNodeKey));
+	}
+	
+	/**Removes a node and all its connections from this graph.  This may split its network in parts,
+	 * in which case the largest part keeps the network object and the handler is asked to split off the rest.
+	 */
+	public void removeNode(long nodeKey){
+		int index = getIndex(nodeKey);
+		int root = find(index);
+		@SuppressWarnings("unchecked")
+		NetworkType network = (NetworkType) networks[root];
+		networks[root] = null;
+		
+		//Disconnect from all neighbours and free the index.
+		int[] formerNeighbours = Arrays.copyOf(neighbours[index], neighbourCounts[index]);
+		for(int neighbourIndex : formerNeighbours){
+			removeNeighbour(neighbourIndex, index);
+		}
+		neighbourCounts[index] = 0;
+		nodeIndexes.remove(nodeKey);
+		parents[index] = -1;
+		if(freeIndexCount == freeIndexes.length){
+			freeIndexes = Arrays.copyOf(freeIndexes, freeIndexes.length*2);
+		}
+		freeIndexes[freeIndexCount++] = index;
+		--nodeCount;
+		
+		if(formerNeighbours.length == 0){
+			handler.removeNetwork(network);
+			return;
+		}
+		
+		//Walk the rest of the old network from each former neighbour to find the parts it fell into.
+		//Parent pointers may have gone through the removed node, so every part gets a fresh root.
+		List<int[]> parts = new ArrayList<int[]>();
+		int mark = ++visitMark;
+		int[] queue = new int[sizes[root]];
+		for(int startIndex : formerNeighbours){
+			if(visitMarks[startIndex] != mark){
+				int queueEnd = 0;
+				queue[queueEnd++] = startIndex;
+				visitMarks[startIndex] = mark;
+				for(int queueIndex=0; queueIndex<queueEnd; ++queueIndex){
+					int currentIndex = queue[queueIndex];
+					for(int i=0; i<neighbourCounts[currentIndex]; ++i){
+						int neighbourIndex = neighbours[currentIndex][i];
+						if(visitMarks[neighbourIndex] != mark){
+							visitMarks[neighbourIndex] = mark;
+							queue[queueEnd++] = neighbourIndex;
+						}
+					}
+				}
+				parts.add(Arrays.copyOf(queue, queueEnd));
+			}
+		}
+		
+		//The largest part keeps the network object, the others get new ones.
+		int largestPart = 0;
+		for(int i=1; i<parts.size(); ++i){
+			if(parts.get(i).length > parts.get(largestPart).length){
+				largestPart = i;
+			}
+		}
+		List<NetworkType> newNetworks = new ArrayList<NetworkType>();
+		for(int i=0; i<parts.size(); ++i){
+			int[] part = parts.get(i);
+			int partRoot = part[0];
+			for(int partIndex : part){
+				parents[partIndex] = partRoot;
+			}
+			sizes[partRoot] = part.length;
+			if(i == largestPart){
+				networks[partRoot] = network;
+			}else{
+				NetworkType newNetwork = handler.createNetwork();
+				networks[partRoot] = newNetwork;
+				newNetworks.add(newNetwork);
+			}
+		}
+		if(!newNetworks.isEmpty()){
+			handler.splitNetwork(network, newNetworks);
+		}
+	}
+	
+	/**Returns the network the passed-in node is in, or null if the node isn't in this graph.*/
+	public NetworkType getNetwork(long nodeKey){
+		Integer index = nodeIndexes.get(nodeKey);
+		return index != null ? getNetworkOfIndex(index) : null;
+	}
+	
+	/**Returns the number of nodes in the network of the passed-in node, or 0 if the node isn't in this graph.*/
+	public int getNetworkSize(long nodeKey){
+		Integer index = nodeIndexes.get(nodeKey);
+		return index != null ? sizes[find(index)] : 0;
+	}
+	
+	/**Returns the number of nodes in this graph.*/
+	public int getNodeCount(){
+		return nodeCount;
+	}
+	
+	/**Returns the index of the passed-in node, or -1 if it isn't in this graph.  Indexes are only valid until the node is removed.
+	 * This, and the other index methods, are for systems that walk the graph often and can't afford a map lookup per node.
+	 */
+	int getNodeIndex(long nodeKey){
+		Integer index = nodeIndexes.get(nodeKey);
+		return index != null ? index : -1;
+	}
+	
+	/**Returns the key of the node at the passed-in index.*/
+	long getNodeKeyOfIndex(int index){
+		return nodeKeys[index];
+	}
+	
+	/**Returns the number of neighbours of the node at the passed-in index.*/
+	int getNeighbourCount(int index){
+		return neighbourCounts[index];
+	}
+	
+	/**Returns the index of the passed-in neighbour of the node at the passed-in index.*/
+	int getNeighbourIndex(int index, int neighbourNumber){
+		return neighbours[index][neighbourNumber];
+	}
+	
+	/**Returns one more than the highest index in use, for sizing arrays indexed by node index.*/
+	int getIndexLimit(){
+		return indexCount;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private NetworkType getNetworkOfIndex(int index){
+		return (NetworkType) networks[find(index)];
+	}
+	
+	private int getIndex(long nodeKey){
+		Integer index = nodeIndexes.get(nodeKey);
+		if(index == null){
+			throw new IllegalArgumentException("Attempted to use node " + nodeKey + ", but it isn't in this graph!");
+		}
+		return index;
+	}
+	
+	/**Finds the root of the passed-in node, halving the path as it goes so later finds are quicker.*/
+	private int find(int index){
+		while(parents[index] != index){
+			parents[index] = parents[parents[index]];
+			index = parents[index];
+		}
+		return index;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void connect(int index, int otherIndex){
+		if(index == otherIndex){
+			return;
+		}
+		for(int i=0; i<neighbourCounts[index]; ++i){
+			if(neighbours[index][i] == otherIndex){
+				return;
+			}
+		}
+		addNeighbour(index, otherIndex);
+		addNeighbour(otherIndex, index);
+		
+		int root = find(index);
+		int otherRoot = find(otherIndex);
+		if(root != otherRoot){
+			//Keep the larger network so the least data has to move.
+			if(sizes[root] < sizes[otherRoot]){
+				int swap = root;
+				root = otherRoot;
+				otherRoot = swap;
+			}
+			parents[otherRoot] = root;
+			sizes[root] += sizes[otherRoot];
+			handler.mergeNetworks((NetworkType) networks[root], (NetworkType) networks[otherRoot]);
+			networks[otherRoot] = null;
+		}
+	}
+	
+	private void addNeighbour(int index, int neighbourIndex){
+		if(neighbours[index] == null){
+			neighbours[index] = new int[6];
+		}else if(neighbourCounts[index] == neighbours[index].length){
+			neighbours[index] = Arrays.copyOf(neighbours[index], neighbourCounts[index]*2);
+		}
+		neighbours[index][neighbourCounts[index]++] = neighbourIndex;
+	}
+	
+	private void removeNeighbour(int index, int neighbourIndex){
+		int[] nodeNeighbours = neighbours[index];
+		for(int i=0; i<neighbourCounts[index]; ++i){
+			if(nodeNeighbours[i] == neighbourIndex){
+				nodeNeighbours[i] = nodeNeighbours[--neighbourCounts[index]];
+				return;
+			}
+		}
+	}
+	
+	private int allocateIndex(){
+		++nodeCount;
+		if(freeIndexCount > 0){
+			return freeIndexes[--freeIndexCount];
+		}
+		int index = indexCount++;
+		if(index == parents.length){
+			int newLength = parents.length*2;
+			parents = Arrays.copyOf(parents, newLength);
+			sizes = Arrays.copyOf(sizes, newLength);
+			networks = Arrays.copyOf(networks, newLength);
+			nodeKeys = Arrays.copyOf(nodeKeys, newLength);
+			neighbours = Arrays.copyOf(neighbours, newLength);
+			neighbourCounts = Arrays.copyOf(neighbourCounts, newLength);
+			visitMarks = Arrays.copyOf(visitMarks, newLength);
+		}
+		return index;
+	}
+	
+	/**
+	 * Handles the network objects of a graph.  The graph calls these methods whenever its networks change.
+	 */
+	public static interface NetworkHandler<NetworkType>{
+		/**Creates the object for a new network.  The graph will say which nodes it has through the other methods.*/
+		public NetworkType createNetwork();
+		
+		/**Called when two networks are joined.  All data of the merged network should be moved to the kept network,
+		 * as the merged network is no longer used after this.
+		 */
+		public void mergeNetworks(NetworkType keptNetwork, NetworkType mergedNetwork);
+		
+		/**Called when removing a node splits a network in parts.  The old network keeps the largest part, and the
+		 * new networks are the rest.  {@link SystemNetworkGraph#getNetwork(long)} already returns the new networks,
+		 * so it may be used to find where data of the old network should go.
+		 */
+		public void splitNetwork(NetworkType oldNetwork, List<NetworkType> newNetworks);
+		
+		/**Called when the last node of a network is removed.  The network is no longer used after this.*/
+		public void removeNetwork(NetworkType network);
+	}
+}
@@ -0,0 +1,181 @@
+/**
+ * 
+ */
+package systems;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import registries.ARegistry;
+import registries.IRegistryObject;
+
+/**
+ * This class saves the frozen state of all registries to a cache file, so the next start can skip
+ * building and registering every object one at a time.  After a normal bootstrap and
+ * {@link SystemRegistryManager#freezeRegistries()}, call {@link #writeCache(Path, long)}.  On the next start,
+ * call {@link #loadCache(Path, long)} before registering anything.  If it returns true, the registries have
+ * been filled from the cache and frozen, and the bootstrap may be skipped.  If it returns false, the cache
+ * is missing, stale, or corrupt, and the full bootstrap must be run as normal.
+ * <br><br>
+ * The content hash passed to both methods is what ties the cache to the content it was made from.
+ * It should change whenever anything that registers objects changes, such as the list of installed
+ * mods or the content files they load.  {@link #hashContent(Path, List)} may be used to make one from files.
+ * <br><br>
+ * Only registries that opt in with {@link ARegistry#isCacheable()}, and whose objects can be written with
+ * {@link ARegistry#writeCachedObject(IRegistryObject, DataOutputStream)}, can be cached.  If any registry or object
+ * can't be, no cache is written, and a cache is never loaded into a registry that can't be cached, as a cache that only covers
+ * some registries would still need the full bootstrap.  Note that writing the cache builds any objects that
+ * were registered with suppliers, as their properties are needed.
+ * <br><br>
+ * The file is a 4-byte magic number, a 4-byte format version, the 8-byte content hash, the 4-byte length
+ * and 4-byte CRC32 of the body, and then the body.  The body has each registry's type, object count, and
+ * objects, in ID order.  As IDs are assigned by name on freeze, re-registering the objects gives the same IDs.
+ *
+ * @author don_bruce
+ */
+public class SystemRegistryCache{
+	protected static final int fileMagic = 0x4D435243;
+	protected static final int fileVersion = 1;
+	private static final int headerSize = 24;
+	
+	/**Writes all registries to the passed-in cache file.  The registries must be frozen.
+	 * Returns false if any registry or object can't be cached, in which case no file is written.
+	 */
+	public static boolean writeCache(Path cacheFile, long contentHash) throws IOException{
+		ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+		DataOutputStream bodyStream = new DataOutputStream(bodyBytes);
+		List<ARegistry<? extends IRegistryObject>> registries = SystemRegistryManager.getRegistries();
+		SystemDataSaveLoad.writeVarInt(bodyStream, registries.size());
+		for(ARegistry<? extends IRegistryObject> registry : registries){
+			if(!registry.isFrozen()){
+				throw new IllegalStateException("Attempted to cache the " + registry.getType() + " registry before it was frozen!");
+			}
+			if(!registry.isCacheable() || !writeRegistry(registry, bodyStream)){
+				return false;
+			}
+		}
+		byte[] body = bodyBytes.toByteArray();
+		CRC32 checksum = new CRC32();
+		checksum.update(body);
+		
+		ByteBuffer header = ByteBuffer.allocate(headerSize);
+		header.putInt(fileMagic).putInt(fileVersion).putLong(contentHash).putInt(body.length).putInt((int) checksum.getValue());
+		
+		//Write to a temp file and move it over, so a crash can't leave half a cache behind.
+		Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+		try(DataOutputStream fileStream = new DataOutputStream(Files.newOutputStream(tempFile))){
+			fileStream.write(header.array());
+			fileStream.write(body);
+		}
+		SystemDataSaveService.moveAtomically(tempFile, cacheFile);
+		return true;
+	}
+	
+	private static <RegistryObject extends IRegistryObject> boolean writeRegistry(ARegistry<RegistryObject> registry, DataOutputStream outputStream) throws IOException{
+		outputStream.writeUTF(registry.getType());
+		SystemDataSaveLoad.writeVarInt(outputStream, registry.getIdCount());
+		for(int id=0; id<registry.getIdCount(); ++id){
+			if(!registry.writeCachedObject(registry.getById(id), outputStream)){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**Fills and freezes all registries from the passed-in cache file.  This must be called before anything is registered.
+	 * Returns false if the cache doesn't exist, was made for different content, or is corrupt.  Nothing is registered in that case.
+	 */
+	public static boolean loadCache(Path cacheFile, long contentHash) throws IOException{
+		byte[] fileBytes;
+		try{
+			fileBytes = Files.readAllBytes(cacheFile);
+		}catch(NoSuchFileException e){
+			return false;
+		}
+		if(fileBytes.length < headerSize){
+			return false;
+		}
+		ByteBuffer header = ByteBuffer.wrap(fileBytes, 0, headerSize);
+		if(header.getInt() != fileMagic || header.getInt() != fileVersion || header.getLong() != contentHash || header.getInt() != fileBytes.length - headerSize){
+			return false;
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(fileBytes, headerSize, fileBytes.length - headerSize);
+		if(header.getInt() != (int) checksum.getValue()){
+			return false;
+		}
+		
+		//Read everything before registering anything, so a bad cache leaves the registries untouched.
+		List<ARegistry<? extends IRegistryObject>> registries = SystemRegistryManager.getRegistries();
+		List<Runnable> cachedRegistries = new ArrayList<Runnable>();
+		DataInputStream bodyStream = new DataInputStream(new ByteArrayInputStream(fileBytes, headerSize, fileBytes.length - headerSize));
+		try{
+			int registryCount = SystemDataSaveLoad.readVarInt(bodyStream);
+			if(registryCount != registries.size()){
+				return false;
+			}
+			for(int i=0; i<registryCount; ++i){
+				ARegistry<? extends IRegistryObject> registry = SystemRegistryManager.getRegistryByType(bodyStream.readUTF());
+				if(registry == null || !registry.isCacheable()){
+					return false;
+				}else if(registry.isFrozen()){
+					throw new IllegalStateException("Attempted to load the registry cache after the " + registry.getType() + " registry was frozen!");
+				}
+				cachedRegistries.add(registry.readCachedObjects(bodyStream, SystemDataSaveLoad.readVarInt(bodyStream)));
+			}
+		}catch(IOException e){
+			//The body is already in memory, so anything that goes wrong reading it means the cache is bad.
+			return false;
+		}
+		for(Runnable cachedRegistry : cachedRegistries){
+			cachedRegistry.run();
+		}
+		SystemRegistryManager.freezeRegistries();
+		return true;
+	}
+	
+	/**Returns a hash of the names and contents of the passed-in files, for use as a content hash.
+	 * Files are named by their path relative to the passed-in root, so moving the game folder doesn't
+	 * change the hash.  Each name and content is prefixed by its length, so bytes can't shift between them.
+	 */
+	public static long hashContent(Path contentRoot, List<Path> contentFiles) throws IOException{
+		try{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+			Path absoluteRoot = contentRoot.toAbsolutePath().normalize();
+			for(Path contentFile : contentFiles){
+				Path resolvedFile = absoluteRoot.resolve(contentFile).normalize();
+				//Use / between names on every platform so the hash is the same everywhere.
+				StringBuilder entryName = new StringBuilder();
+				for(Path namePart : absoluteRoot.relativize(resolvedFile)){
+					if(entryName.length() > 0){
+						entryName.append('/');
+					}
+					entryName.append(namePart.toString());
+				}
+				byte[] nameBytes = entryName.toString().getBytes("UTF-8");
+				byte[] contentBytes = Files.readAllBytes(resolvedFile);
+				digest.update((ByteBuffer) lengthBuffer.putInt(0, nameBytes.length).rewind());
+				digest.update(nameBytes);
+				digest.update((ByteBuffer) lengthBuffer.putInt(0, contentBytes.length).rewind());
+				digest.update(contentBytes);
+			}
+			return ByteBuffer.wrap(digest.digest()).getLong();
+		}catch(NoSuchAlgorithmException e){
+			//Every Java platform is required to have SHA-256, so this can't happen.
+			throw new IllegalStateException(e);
+		}
+	}
+}
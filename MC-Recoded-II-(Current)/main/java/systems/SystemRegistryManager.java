@@ -4,7 +4,10 @@
 package systems;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import registries.ARegistry;
 import registries.IRegistryObject;
@@ -18,29 +21,96 @@ import registries.RegistryFluid;
  * game are created and stored here, you are free to store your own registries wherever
  * you wish.  This system will link back to them when called upon, so no more trying
  * to find registries; just come here and ask for them.
+ * <br><br>
+ * Registries may be looked up by their type or by their class.  Both are a single map lookup, and the
+ * class lookup returns the registry as its own type, so no casting is needed.  Code that looks up
+ * the same registry often, such as tick loops, should keep a {@link RegistryHandle} instead, which
+ * finds the registry once and then holds onto it.
  * 
  * @author don_bruce
  */
 public class SystemRegistryManager{
 	private static final List<ARegistry<? extends IRegistryObject>> registries = new ArrayList<ARegistry<? extends IRegistryObject>>();
-	public static final RegistryEnergy energyRegistry = new RegistryEnergy();
-	public static final RegistryFluid fluidRegistry = new RegistryFluid();
+	private static final Map<String, ARegistry<? extends IRegistryObject>> registriesByType = new ConcurrentHashMap<String, ARegistry<? extends IRegistryObject>>();
+	private static final Map<Class<?>, ARegistry<? extends IRegistryObject>> registriesByClass = new ConcurrentHashMap<Class<?>, ARegistry<? extends IRegistryObject>>();
+	public static final RegistryEnergy energyRegistry = addRegistry(new RegistryEnergy());
+	public static final RegistryFluid fluidRegistry = addRegistry(new RegistryFluid());
 	
 	/**Adds a registry to the RegistryManager.  This should be done before any registering operations are performed.
-	 * Returns the passed-in registry for construction convenience.
+	 * Returns the passed-in registry for construction convenience.  Adding a registry that's already been added
+	 * does nothing.  As registry types must be unique, adding a different registry with the same type as one
+	 * already added will throw an IllegalArgumentException.
 	 * */
-	public static <RegistryObject extends IRegistryObject> ARegistry<RegistryObject> addRegistry(ARegistry<RegistryObject> registryToAdd){
+	public static synchronized <RegistryType extends ARegistry<?>> RegistryType addRegistry(RegistryType registryToAdd){
+		ARegistry<? extends IRegistryObject> existingRegistry = registriesByType.get(registryToAdd.getType());
+		if(existingRegistry == registryToAdd){
+			return registryToAdd;
+		}else if(existingRegistry != null){
+			throw new IllegalArgumentException("Attempted to add a registry of type " + registryToAdd.getType() + ", but a registry of that type already exists!");
+		}
 		registries.add(registryToAdd);
+		registriesByType.put(registryToAdd.getType(), registryToAdd);
+		registriesByClass.put(registryToAdd.getClass(), registryToAdd);
 		return registryToAdd;
 	}
 	
+	/**Freezes all registries.  This should be called once all registration is done, and before any threads
+	 * other than the bootstrap thread start using the registries.  See {@link ARegistry#freeze()}.
+	 */
+	public static void freezeRegistries(){
+		freezeRegistries(false);
+	}
+	
+	/**Like {@link #freezeRegistries()}, but optionally builds all objects registered with suppliers.
+	 * See {@link ARegistry#freeze(boolean)}.
+	 */
+	public static synchronized void freezeRegistries(boolean buildObjects){
+		for(ARegistry<? extends IRegistryObject> registry : registries){
+			registry.freeze(buildObjects);
+		}
+	}
+	
+	/**Gets all registries that have been added, in the order they were added.*/
+	public static synchronized List<ARegistry<? extends IRegistryObject>> getRegistries(){
+		return Collections.unmodifiableList(new ArrayList<ARegistry<? extends IRegistryObject>>(registries));
+	}
+	
 	/**Gets the registry matching the passed-in type, or null if no such registry exists.*/
 	public static ARegistry<? extends IRegistryObject> getRegistryByType(String registryType){
-		for(ARegistry<? extends IRegistryObject> registry : registries){
-			if(registry.getType().equals(registryType)){
-				return registry;
+		return registriesByType.get(registryType);
+	}
+	
+	/**Gets the registry of the passed-in class, or null if no such registry exists.*/
+	public static <RegistryType extends ARegistry<?>> RegistryType get(Class<RegistryType> registryClass){
+		return registryClass.cast(registriesByClass.get(registryClass));
+	}
+	
+	/**Gets a handle for the registry of the passed-in class.  The registry doesn't need to exist yet.*/
+	public static <RegistryType extends ARegistry<?>> RegistryHandle<RegistryType> getHandle(Class<RegistryType> registryClass){
+		return new RegistryHandle<RegistryType>(registryClass);
+	}
+	
+	/**
+	 * A handle to a registry of a specific class.  The registry is looked up the first time
+	 * {@link #get()} finds it, and the handle holds onto it after that, so keeping a handle in
+	 * a static field makes getting the registry as cheap as reading a field.
+	 */
+	public static final class RegistryHandle<RegistryType extends ARegistry<?>>{
+		private final Class<RegistryType> registryClass;
+		private volatile RegistryType registry;
+		
+		private RegistryHandle(Class<RegistryType> registryClass){
+			this.registryClass = registryClass;
+		}
+		
+		/**Gets the registry for this handle, or null if it hasn't been added yet.*/
+		public RegistryType get(){
+			RegistryType cachedRegistry = registry;
+			if(cachedRegistry == null){
+				cachedRegistry = SystemRegistryManager.get(registryClass);
+				registry = cachedRegistry;
 			}
+			return cachedRegistry;
 		}
-		return null;
 	}
 }
@@ -0,0 +1,35 @@
+/**
+ * 
+ */
+package systems;
+
+/**
+ * This class holds the global tick count.  It is advanced once per tick by the main loop, and
+ * is what anything that changes over time, such as fluid evaporating in a container, should use
+ * to tell how long it's been.  Rather than ticking every such object every tick, objects should
+ * save the tick they were last brought up to date on, and catch up on everything that happened since
+ * when they are next read or changed.  This way idle objects cost nothing, no matter how many there are.
+ * <br><br>
+ * The tick count should be saved with the world and restored with {@link #setCurrentTick(long)} when
+ * it's loaded, so saved objects know how long they've been waiting.
+ * 
+ * @author don_bruce
+ */
+public class SystemTickClock{
+	private static volatile long currentTick;
+	
+	/**Returns the current tick.*/
+	public static long getCurrentTick(){
+		return currentTick;
+	}
+	
+	/**Advances the clock by one tick.  This should only be called by the main loop, once per tick.*/
+	public static void advance(){
+		currentTick = currentTick + 1;
+	}
+	
+	/**Sets the current tick.  Used when loading a world.*/
+	public static void setCurrentTick(long tick){
+		currentTick = tick;
+	}
+}